@@ -0,0 +1,241 @@
+package in.konstant.btservicetest;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.test.ServiceTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import in.konstant.BT.BTService;
+import in.konstant.BT.BTStats;
+
+// Soak test of the service against BTSimulator's virtual devices: connects them all, lets
+// them stream for DURATION and reports sustained throughput, heap growth and dropped data
+// every REPORT_INTERVAL (logcat tag BTSoakTest).
+@LargeTest
+public class BTSoakTest extends ServiceTestCase<BTService> {
+    private static final String TAG = "BTSoakTest";
+
+    // Load profile
+    private static final int DEVICES = 16;
+    private static final int RATE = 4096;
+    private static final int BURST = 256;
+    private static final int LATENCY = 20;
+    private static final int DISCONNECT_INTERVAL = 60 * 1000;
+    private static final boolean ECHO = true;
+
+    private static final long DURATION = 10 * 60 * 1000;
+    private static final long REPORT_INTERVAL = 10 * 1000;
+    private static final long REPLY_TIMEOUT = 30 * 1000;
+
+    // Size of the simulator's messages, the delimiter is stripped before they arrive
+    private static final int MESSAGE_SIZE = 32;
+
+    // BTConnectBatch.RESULT_CONNECTED
+    private static final int RESULT_CONNECTED = 1;
+
+    private static final long MAX_HEAP_GROWTH = 4 * 1024 * 1024;
+
+    private HandlerThread mReplyThread;
+    private Messenger mService;
+
+    private final LinkedBlockingQueue<Message> mReplies = new LinkedBlockingQueue<Message>();
+    private final AtomicLong mReceivedMessages = new AtomicLong();
+
+    public BTSoakTest() {
+        super(BTService.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mReplyThread = new HandlerThread("BTSoakReplies");
+        mReplyThread.start();
+
+        Messenger replies = new Messenger(new Handler(mReplyThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                // Counted here, there are far too many to queue
+                if (msg.what == BTService.Reply.RECEIVED) {
+                    mReceivedMessages.incrementAndGet();
+                } else {
+                    mReplies.add(Message.obtain(msg));
+                }
+            }
+        });
+
+        Intent intent = new Intent(getContext(), BTService.class);
+        intent.putExtra(BTService.EXTRA_MESSENGER, replies);
+
+        mService = new Messenger(bindService(intent));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Bundle data = new Bundle();
+        data.putInt(BTService.EXTRA_COUNT, 0);
+        send(BTService.Command.SIMULATE, data);
+
+        mReplyThread.quit();
+
+        super.tearDown();
+    }
+
+    public void testSoak() throws Exception {
+        Bundle simulate = new Bundle();
+        simulate.putInt(BTService.EXTRA_COUNT, DEVICES);
+        simulate.putInt(BTService.EXTRA_RATE, RATE);
+        simulate.putInt(BTService.EXTRA_BURST, BURST);
+        simulate.putInt(BTService.EXTRA_LATENCY, LATENCY);
+        simulate.putInt(BTService.EXTRA_DISCONNECT_INTERVAL, DISCONNECT_INTERVAL);
+        simulate.putBoolean(BTService.EXTRA_ECHO, ECHO);
+        send(BTService.Command.SIMULATE, simulate);
+
+        String[] addresses = await(BTService.Reply.SIMULATING).getData().getStringArray(BTService.EXTRA_ADDRESSES);
+        assertEquals(DEVICES, addresses.length);
+
+        Bundle connect = new Bundle();
+        connect.putStringArray(BTService.EXTRA_ADDRESSES, addresses);
+        connect.putInt(BTService.EXTRA_PARALLEL, 4);
+        connect.putBoolean(BTService.EXTRA_RECONNECT, true);
+        connect.putInt(BTService.EXTRA_FRAMING, BTService.Framing.DELIMITER);
+        connect.putByteArray(BTService.EXTRA_FRAME_DELIMITER, new byte[] { '\n' });
+        send(BTService.Command.CONNECT_BATCH, connect);
+
+        int[] results = await(BTService.Reply.BATCH_CONNECTED).getData().getIntArray(BTService.EXTRA_RESULTS);
+
+        for (int result : results) {
+            assertEquals(RESULT_CONNECTED, result);
+        }
+
+        long heapStart = usedHeap();
+        long start = SystemClock.elapsedRealtime();
+        long lastMessages = 0;
+        long lastTime = start;
+
+        byte[] ping = "ping\n".getBytes();
+        Report report = null;
+
+        while (SystemClock.elapsedRealtime() - start < DURATION) {
+            // Echoed back by the devices
+            if (ECHO) {
+                for (String address : addresses) {
+                    Bundle send = new Bundle();
+                    send.putString(BTService.EXTRA_ADDRESS, address);
+                    send.putByteArray(BTService.EXTRA_DATA, ping);
+                    send(BTService.Command.SEND, send);
+                }
+            }
+
+            SystemClock.sleep(REPORT_INTERVAL);
+
+            long now = SystemClock.elapsedRealtime();
+            long messages = mReceivedMessages.get();
+
+            report = report();
+
+            Log.i(TAG, String.format("t=%ds rx=%d B/s heap=%+d kB native=%d kB generated=%d overflow=%d lost=%d reconnects=%d writeDrops=%d",
+                    (now - start) / 1000,
+                    (messages - lastMessages) * MESSAGE_SIZE * 1000 / (now - lastTime),
+                    (usedHeap() - heapStart) / 1024,
+                    Debug.getNativeHeapAllocatedSize() / 1024,
+                    report.generated, report.overflows, report.lost(messages), report.reconnects, report.writeDrops));
+
+            lastMessages = messages;
+            lastTime = now;
+        }
+
+        long heapGrowth = usedHeap() - heapStart;
+
+        Log.i(TAG, String.format("done: %d messages, heap growth %d kB", mReceivedMessages.get(), heapGrowth / 1024));
+
+        assertTrue("no data received", mReceivedMessages.get() > 0);
+        assertTrue("heap grew by " + heapGrowth + " bytes", heapGrowth < MAX_HEAP_GROWTH);
+    }
+
+    // Helpers -------------------------------------------------------------------------------------
+
+    private static final class Report {
+        long generated;
+        long overflows;
+        long reconnects;
+        long writeDrops;
+
+        // Messages neither received nor dropped at the source, includes those still in flight
+        long lost(long received) {
+            return (generated - overflows) / MESSAGE_SIZE - received;
+        }
+    }
+
+    private Report report() throws Exception {
+        send(BTService.Command.GET_STATS, null);
+
+        Report report = new Report();
+        Message msg;
+
+        // One STATS per device, then SIMULATOR_STATS
+        while ((msg = await(-1)).what != BTService.Reply.SIMULATOR_STATS) {
+            if (msg.what != BTService.Reply.STATS) continue;
+
+            long[] counters = msg.getData().getLongArray(BTService.EXTRA_COUNTERS);
+            report.reconnects += counters[BTStats.RECONNECTS];
+            report.writeDrops += counters[BTStats.WRITE_DROPS];
+        }
+
+        for (long generated : msg.getData().getLongArray(BTService.EXTRA_GENERATED)) {
+            report.generated += generated;
+        }
+
+        for (long overflows : msg.getData().getLongArray(BTService.EXTRA_OVERFLOWS)) {
+            report.overflows += overflows;
+        }
+
+        return report;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+
+        System.gc();
+        SystemClock.sleep(100);
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private void send(int command, Bundle data) throws RemoteException {
+        Message msg = Message.obtain(null, command);
+
+        if (data != null) {
+            msg.setData(data);
+        }
+
+        mService.send(msg);
+    }
+
+    // Next reply of the given kind (-1 for any), skipping others
+    private Message await(int what) throws InterruptedException {
+        long deadline = SystemClock.elapsedRealtime() + REPLY_TIMEOUT;
+
+        while (true) {
+            Message msg = mReplies.poll(deadline - SystemClock.elapsedRealtime(), TimeUnit.MILLISECONDS);
+
+            assertNotNull("reply " + what + " timed out", msg);
+
+            if (what == -1 || msg.what == what) {
+                return msg;
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package in.konstant.BT;
+
+import java.util.Random;
+
+// Exponential backoff with jitter: the n-th delay is drawn from [cap / 2, cap] with
+// cap = min(max, base * 2^n), so devices losing their link together don't retry in lockstep.
+final class BTBackoff {
+    public static final int DEFAULT_BASE = 500;
+    public static final int DEFAULT_MAX = 30000;
+
+    private final long mBase;
+    private final long mMax;
+    private final Random mRandom = new Random();
+
+    private int mAttempts;
+
+    BTBackoff() {
+        this(DEFAULT_BASE, DEFAULT_MAX);
+    }
+
+    BTBackoff(long base, long max) {
+        if (base <= 0 || max < base) throw new IllegalArgumentException("base/max");
+
+        mBase = base;
+        mMax = max;
+    }
+
+    synchronized long next() {
+        long cap = Math.min(mMax, mBase << Math.min(mAttempts, 30));
+        long half = cap / 2;
+
+        mAttempts++;
+
+        return half + (long) (mRandom.nextDouble() * (cap - half));
+    }
+
+    synchronized int getAttempts() {
+        return mAttempts;
+    }
+
+    synchronized void reset() {
+        mAttempts = 0;
+    }
+}
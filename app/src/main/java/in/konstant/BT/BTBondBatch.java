@@ -0,0 +1,152 @@
+package in.konstant.BT;
+
+import android.bluetooth.BluetoothDevice;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+
+// Bonds or unbonds a list of devices one after another and collects the outcome and time of
+// every address. Driven by the service thread: next() hands out the address to work on,
+// onResult() feeds back what ACTION_BOND_STATE_CHANGED (or a timeout) said about it.
+final class BTBondBatch {
+    // Debug
+    private static final String TAG = "BTBondBatch";
+    private static final boolean DBG = BTLog.isDebug();
+    private static final int LOG = BTLog.SERVICE;
+
+    public static final int DEFAULT_TIMEOUT = 30000;
+
+    public static final int RESULT_PENDING = 0;
+    public static final int RESULT_DONE = 1;
+    public static final int RESULT_FAILED = 2;
+    public static final int RESULT_TIMEOUT = 3;
+
+    // Hidden API (createBond is public from API 19 on), resolved once. Null if not available.
+    private static final Method sCreateBond;
+    private static final Method sRemoveBond;
+
+    static {
+        sCreateBond = getMethod("createBond");
+        sRemoveBond = getMethod("removeBond");
+    }
+
+    private final String[] mAddresses;
+    private final boolean mUnbond;
+    private final int mTimeout;
+
+    private int mNext;
+    private int mCurrent = -1;
+    private long mStarted;
+
+    private final int[] mResults;
+    private final long[] mTimes;
+
+    BTBondBatch(String[] addresses, boolean unbond, int timeout) {
+        if (timeout <= 0) throw new IllegalArgumentException("timeout <= 0");
+
+        mAddresses = addresses;
+        mUnbond = unbond;
+        mTimeout = timeout;
+
+        mResults = new int[addresses.length];
+        mTimes = new long[addresses.length];
+    }
+
+    // Next address to work on, null while one is running or when none are left
+    String next(long now) {
+        if (mCurrent >= 0 || mNext >= mAddresses.length) return null;
+
+        mCurrent = mNext++;
+        mStarted = now;
+
+        return mAddresses[mCurrent];
+    }
+
+    // Address currently worked on, null if none
+    String current() {
+        return (mCurrent >= 0) ? mAddresses[mCurrent] : null;
+    }
+
+    // Finishes the current address, returns its index or -1 if none is running
+    int onResult(int result, long now) {
+        if (mCurrent < 0) return -1;
+
+        int index = mCurrent;
+        mResults[index] = result;
+        mTimes[index] = now - mStarted;
+        mCurrent = -1;
+
+        return index;
+    }
+
+    // Result for a bond state reported by ACTION_BOND_STATE_CHANGED, RESULT_PENDING if it is
+    // an intermediate state
+    int resultFor(int previousState, int state) {
+        if (mUnbond) {
+            return (state == BluetoothDevice.BOND_NONE) ? RESULT_DONE : RESULT_PENDING;
+        }
+
+        if (state == BluetoothDevice.BOND_BONDED) return RESULT_DONE;
+        if (state == BluetoothDevice.BOND_NONE && previousState == BluetoothDevice.BOND_BONDING) return RESULT_FAILED;
+
+        return RESULT_PENDING;
+    }
+
+    // Starts bonding or unbonding. Returns the result if it is known right away (already in
+    // the requested state, or the request was refused), RESULT_PENDING otherwise.
+    int start(BluetoothDevice device) {
+        int state = device.getBondState();
+
+        if (mUnbond) {
+            if (state == BluetoothDevice.BOND_NONE) return RESULT_DONE;
+            return invoke(sRemoveBond, device) ? RESULT_PENDING : RESULT_FAILED;
+        }
+
+        if (state == BluetoothDevice.BOND_BONDED) return RESULT_DONE;
+        if (state == BluetoothDevice.BOND_BONDING) return RESULT_PENDING;
+        return invoke(sCreateBond, device) ? RESULT_PENDING : RESULT_FAILED;
+    }
+
+    boolean isDone() {
+        return mCurrent < 0 && mNext >= mAddresses.length;
+    }
+
+    int getTimeout() {
+        return mTimeout;
+    }
+
+    String[] getAddresses() {
+        return mAddresses;
+    }
+
+    int[] getResults() {
+        return mResults;
+    }
+
+    // Time from starting to the outcome, per address in ms
+    long[] getTimes() {
+        return mTimes;
+    }
+
+    // Reflection Helpers --------------------------------------------------------------------------
+
+    private static Method getMethod(String name) {
+        try {
+            return BluetoothDevice.class.getMethod(name);
+        } catch (Exception e) {
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, name + "() not available", e);
+            return null;
+        }
+    }
+
+    private static boolean invoke(Method method, BluetoothDevice device) {
+        if (method == null) return false;
+
+        try {
+            return (Boolean) method.invoke(device);
+        } catch (Exception e) {
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, method.getName() + "() failed", e);
+            return false;
+        }
+    }
+}
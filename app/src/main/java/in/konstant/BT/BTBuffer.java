@@ -0,0 +1,32 @@
+package in.konstant.BT;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+final class BTBuffer {
+    final byte[] data;
+    int length;
+
+    private final BTBufferPool mPool;
+
+    // Several frames may be dispatched out of one buffer, each holds a reference
+    private final AtomicInteger mRefs = new AtomicInteger(1);
+
+    BTBuffer(BTBufferPool pool, int size) {
+        mPool = pool;
+        data = new byte[size];
+    }
+
+    void retain() {
+        mRefs.incrementAndGet();
+    }
+
+    // Hand the buffer back to the pool it was obtained from once the last reference is gone.
+    // The buffer must not be touched afterwards, it will be reused for the next read.
+    void recycle() {
+        if (mRefs.decrementAndGet() == 0) {
+            length = 0;
+            mRefs.set(1);
+            mPool.recycle(this);
+        }
+    }
+}
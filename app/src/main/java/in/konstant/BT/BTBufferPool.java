@@ -0,0 +1,65 @@
+package in.konstant.BT;
+
+import java.util.ArrayDeque;
+
+final class BTBufferPool {
+    public static final int DEFAULT_BUFFER_SIZE = 1024;
+    public static final int DEFAULT_POOL_SIZE = 16;
+
+    private final int mBufferSize;
+    private final int mPoolSize;
+
+    private final ArrayDeque<BTBuffer> mFree;
+
+    BTBufferPool() {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_POOL_SIZE);
+    }
+
+    BTBufferPool(int bufferSize, int poolSize) {
+        if (bufferSize <= 0) throw new IllegalArgumentException("bufferSize <= 0");
+        if (poolSize < 0) throw new IllegalArgumentException("poolSize < 0");
+
+        mBufferSize = bufferSize;
+        mPoolSize = poolSize;
+        mFree = new ArrayDeque<BTBuffer>(poolSize);
+    }
+
+    BTBuffer obtain() {
+        BTBuffer buffer;
+
+        synchronized (mFree) {
+            buffer = mFree.pollFirst();
+        }
+
+        // Pool exhausted (consumer is behind), fall back to a fresh buffer
+        if (buffer == null) {
+            buffer = new BTBuffer(this, mBufferSize);
+        }
+
+        return buffer;
+    }
+
+    // For data larger than the pooled buffers, e.g. frames assembled from several reads
+    BTBuffer obtain(int size) {
+        if (size <= mBufferSize) {
+            return obtain();
+        }
+
+        return new BTBuffer(this, size);
+    }
+
+    void recycle(BTBuffer buffer) {
+        // Oversized buffers are not pooled
+        if (buffer.data.length != mBufferSize) return;
+
+        synchronized (mFree) {
+            if (mFree.size() < mPoolSize) {
+                mFree.addFirst(buffer);
+            }
+        }
+    }
+
+    int getBufferSize() {
+        return mBufferSize;
+    }
+}
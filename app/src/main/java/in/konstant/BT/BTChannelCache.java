@@ -0,0 +1,144 @@
+package in.konstant.BT;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.os.ParcelUuid;
+import android.os.Parcelable;
+import android.util.Log;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Remembers the RFCOMM channel and service UUIDs resolved for each address, so reconnects
+// can open the channel directly instead of running an SDP query first. Shared by all devices
+// of the service and used from the connect pool, hence the concurrent map. Entries are
+// immutable and changed with putIfAbsent()/replace(), concurrent updates are never lost.
+final class BTChannelCache {
+    // Debug
+    private static final String TAG = "BTChannelCache";
+    private static final boolean DBG = BTLog.isDebug();
+    private static final int LOG = BTLog.DEVICE;
+
+    static final class Entry {
+        final int channel;
+        final UUID[] uuids;
+
+        Entry(int channel, UUID[] uuids) {
+            this.channel = channel;
+            this.uuids = uuids;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> mEntries = new ConcurrentHashMap<String, Entry>();
+
+    // Hidden API, resolved once. Null if not available on this platform version.
+    private static final Method sCreateRfcommSocket;
+    private static final Field sPort;
+
+    static {
+        Method createRfcommSocket = null;
+        Field port = null;
+
+        try {
+            createRfcommSocket = BluetoothDevice.class.getMethod("createRfcommSocket", int.class);
+            port = BluetoothSocket.class.getDeclaredField("mPort");
+            port.setAccessible(true);
+        } catch (Exception e) {
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "Direct channel connect not available", e);
+            createRfcommSocket = null;
+            port = null;
+        }
+
+        sCreateRfcommSocket = createRfcommSocket;
+        sPort = port;
+    }
+
+    // Cached channel for the address, 0 if unknown
+    int getChannel(String address) {
+        Entry entry = mEntries.get(address);
+        return (entry != null) ? entry.channel : 0;
+    }
+
+    UUID[] getUUIDs(String address) {
+        Entry entry = mEntries.get(address);
+        return (entry != null) ? entry.uuids : null;
+    }
+
+    // Remember the channel an SDP based connect ended up on
+    void putChannel(String address, BluetoothSocket socket) {
+        int channel = readChannel(socket);
+
+        if (channel <= 0) return;
+
+        Entry entry;
+
+        do {
+            entry = mEntries.get(address);
+        } while (!update(address, entry, new Entry(channel, (entry != null) ? entry.uuids : null)));
+
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "putChannel(" + address + ", " + channel + ")");
+    }
+
+    // From ACTION_UUID. A device no longer announcing 'required' loses its cached channel.
+    void putUUIDs(String address, Parcelable[] parcels, UUID required) {
+        UUID[] uuids = new UUID[(parcels != null) ? parcels.length : 0];
+        boolean found = false;
+
+        for (int i = 0; i < uuids.length; i++) {
+            uuids[i] = ((ParcelUuid) parcels[i]).getUuid();
+            found |= uuids[i].equals(required);
+        }
+
+        Entry entry;
+
+        do {
+            entry = mEntries.get(address);
+        } while (!update(address, entry, new Entry((entry != null && found) ? entry.channel : 0, uuids)));
+    }
+
+    // The cached channel refused the connect, the next connect runs SDP again. Nothing changes
+    // if another connect has cached a different channel meanwhile.
+    void invalidate(String address, int channel) {
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "invalidate(" + address + ", " + channel + ")");
+
+        Entry entry = mEntries.get(address);
+
+        if (entry != null && entry.channel == channel) {
+            mEntries.replace(address, entry, new Entry(0, entry.uuids));
+        }
+    }
+
+    // Replaces expected (null if there was no entry), false if the entry changed in between
+    private boolean update(String address, Entry expected, Entry entry) {
+        if (expected == null) {
+            return mEntries.putIfAbsent(address, entry) == null;
+        }
+
+        return mEntries.replace(address, expected, entry);
+    }
+
+    // Socket Helpers ------------------------------------------------------------------------------
+
+    static BluetoothSocket createSocket(BluetoothDevice device, int channel) {
+        if (sCreateRfcommSocket == null) return null;
+
+        try {
+            return (BluetoothSocket) sCreateRfcommSocket.invoke(device, channel);
+        } catch (Exception e) {
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "createSocket() failed", e);
+            return null;
+        }
+    }
+
+    private static int readChannel(BluetoothSocket socket) {
+        if (sPort == null) return 0;
+
+        try {
+            return sPort.getInt(socket);
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+}
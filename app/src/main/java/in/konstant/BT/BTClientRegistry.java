@@ -0,0 +1,225 @@
+package in.konstant.BT;
+
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Bound clients and what they subscribed to: a set of device addresses and a set of reply
+// codes, each null for all of them. Replies without an address (ENABLED, DEVICES, ...) reach
+// every client subscribed to the reply code.
+//
+// Messenger clients get replies as Bundles, IBTService clients the device events as typed
+// oneway callbacks, with the Reply codes as event IDs for the subscriptions.
+//
+// Clients are kept in a copy-on-write list, so replies are dispatched from any thread (service
+// thread, broadcast receiver) without locking. Messenger.send() is a oneway call and never
+// blocks on a slow client. Clients are removed when a send fails or their process dies.
+// Registration is rare and synchronized.
+final class BTClientRegistry {
+    // Debug
+    private static final String TAG = "BTClientRegistry";
+    private static final boolean DBG = BTLog.isDebug();
+    private static final int LOG = BTLog.SERVICE;
+
+    private final CopyOnWriteArrayList<Client> mClients = new CopyOnWriteArrayList<Client>();
+
+    private final CopyOnWriteArrayList<Client> mCallbacks = new CopyOnWriteArrayList<Client>();
+
+    private final class Client implements IBinder.DeathRecipient {
+        // One of them is set
+        final Messenger messenger;
+        final IBTServiceCallback callback;
+
+        final IBinder binder;
+
+        // Replaced as a whole on re-registration, never modified
+        volatile HashSet<String> addresses;
+        volatile BitSet events;
+
+        Client(Messenger messenger, IBTServiceCallback callback, String[] addresses, int[] events) {
+            this.messenger = messenger;
+            this.callback = callback;
+            this.binder = (messenger != null) ? messenger.getBinder() : callback.asBinder();
+            this.addresses = toSet(addresses);
+            this.events = toBitSet(events);
+        }
+
+        boolean accepts(int what, String address) {
+            HashSet<String> addresses = this.addresses;
+            BitSet events = this.events;
+
+            return (events == null || events.get(what)) &&
+                   (address == null || addresses == null || addresses.contains(address));
+        }
+
+        @Override
+        public void binderDied() {
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "binderDied()");
+            remove(this);
+        }
+    }
+
+    // Registers the client or replaces its subscriptions if it is registered already
+    void register(Messenger messenger, String[] addresses, int[] events) {
+        register(mClients, new Client(messenger, null, addresses, events));
+    }
+
+    void unregister(Messenger messenger) {
+        unregister(mClients, messenger.getBinder());
+    }
+
+    void registerCallback(IBTServiceCallback callback, String[] addresses, int[] events) {
+        register(mCallbacks, new Client(null, callback, addresses, events));
+    }
+
+    void unregisterCallback(IBTServiceCallback callback) {
+        unregister(mCallbacks, callback.asBinder());
+    }
+
+    // Lets callers skip building a reply nobody is going to get
+    boolean hasSubscriber(int what, String address) {
+        return accepted(mClients, what, address);
+    }
+
+    boolean hasCallback(int what, String address) {
+        return accepted(mCallbacks, what, address);
+    }
+
+    // All subscribers share the one Bundle, it is only parceled per client by the Binder call.
+    // Returns the number of clients the reply went to.
+    int dispatch(int what, Bundle data, String address) {
+        int sent = 0;
+
+        for (Client client : mClients) {
+            if (!client.accepts(what, address)) continue;
+
+            Message msg = Message.obtain(null, what);
+            msg.setData(data);
+
+            try {
+                client.messenger.send(msg);
+                sent++;
+            } catch (RemoteException e) {
+                if (BTLog.error(LOG)) Log.e(TAG, "Client no longer exists");
+                remove(client);
+            }
+        }
+
+        return sent;
+    }
+
+    // Device events to the callbacks: CONNECTED, CONNECT_FAILED, DISCONNECTED, RECEIVED (data)
+    // and SENT (length). The data array is shared as well.
+    void dispatchCallback(int what, String address, byte[] data, int length) {
+        for (Client client : mCallbacks) {
+            if (!client.accepts(what, address)) continue;
+
+            try {
+                switch (what) {
+                    case BTService.Reply.CONNECTED:
+                        client.callback.onConnected(address);
+                        break;
+                    case BTService.Reply.CONNECT_FAILED:
+                        client.callback.onConnectFailed(address);
+                        break;
+                    case BTService.Reply.DISCONNECTED:
+                        client.callback.onDisconnected(address);
+                        break;
+                    case BTService.Reply.RECEIVED:
+                        client.callback.onReceived(address, data);
+                        break;
+                    case BTService.Reply.SENT:
+                        client.callback.onSent(address, length);
+                        break;
+                }
+            } catch (RemoteException e) {
+                if (BTLog.error(LOG)) Log.e(TAG, "Callback no longer exists");
+                remove(client);
+            }
+        }
+    }
+
+    // Helpers -------------------------------------------------------------------------------------
+
+    private static boolean accepted(CopyOnWriteArrayList<Client> clients, int what, String address) {
+        for (Client client : clients) {
+            if (client.accepts(what, address)) return true;
+        }
+
+        return false;
+    }
+
+    private synchronized void register(CopyOnWriteArrayList<Client> clients, Client client) {
+        Client registered = find(clients, client.binder);
+
+        if (registered != null) {
+            registered.addresses = client.addresses;
+            registered.events = client.events;
+            return;
+        }
+
+        try {
+            client.binder.linkToDeath(client, 0);
+        } catch (RemoteException e) {
+            // Already dead
+            return;
+        }
+
+        clients.add(client);
+
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "register() " + (mClients.size() + mCallbacks.size()) + " clients");
+    }
+
+    private synchronized void unregister(CopyOnWriteArrayList<Client> clients, IBinder binder) {
+        Client client = find(clients, binder);
+
+        if (client != null) {
+            remove(client);
+        }
+    }
+
+    private static Client find(CopyOnWriteArrayList<Client> clients, IBinder binder) {
+        for (Client client : clients) {
+            if (client.binder == binder) return client;
+        }
+
+        return null;
+    }
+
+    private void remove(Client client) {
+        if (mClients.remove(client) || mCallbacks.remove(client)) {
+            client.binder.unlinkToDeath(client, 0);
+        }
+    }
+
+    private static HashSet<String> toSet(String[] addresses) {
+        if (addresses == null) return null;
+
+        HashSet<String> set = new HashSet<String>(addresses.length * 2);
+
+        for (String address : addresses) {
+            set.add(address);
+        }
+
+        return set;
+    }
+
+    private static BitSet toBitSet(int[] events) {
+        if (events == null) return null;
+
+        BitSet set = new BitSet();
+
+        for (int event : events) {
+            set.set(event);
+        }
+
+        return set;
+    }
+}
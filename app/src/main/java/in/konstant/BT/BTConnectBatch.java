@@ -0,0 +1,123 @@
+package in.konstant.BT;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+
+// Connects a batch of devices with at most 'parallel' connects in flight, highest priority
+// first, and collects the outcome and connect time of every address. Driven by the service
+// thread: next() hands out addresses to connect, onResult() feeds back the outcome.
+final class BTConnectBatch {
+    public static final int DEFAULT_PARALLEL = 2;
+
+    public static final int RESULT_PENDING = 0;
+    public static final int RESULT_CONNECTED = 1;
+    public static final int RESULT_FAILED = 2;
+    public static final int RESULT_TIMEOUT = 3;
+
+    private final String[] mAddresses;
+    private final int mParallel;
+
+    // Indices into mAddresses in connect order
+    private final Integer[] mOrder;
+    private int mNext;
+    private int mRunning;
+    private int mFinished;
+
+    private final int[] mResults;
+    private final long[] mStarted;
+    private final long[] mTimes;
+
+    // Addresses given more than once are connected once, with their first priority
+    BTConnectBatch(String[] addresses, int[] priorities, int parallel) {
+        if (parallel <= 0) throw new IllegalArgumentException("parallel <= 0");
+        if (priorities != null && priorities.length != addresses.length) throw new IllegalArgumentException("priorities");
+
+        LinkedHashMap<String, Integer> unique = new LinkedHashMap<String, Integer>();
+
+        for (int i = 0; i < addresses.length; i++) {
+            if (!unique.containsKey(addresses[i])) {
+                unique.put(addresses[i], (priorities != null) ? priorities[i] : 0);
+            }
+        }
+
+        addresses = unique.keySet().toArray(new String[unique.size()]);
+
+        final int[] ordered = new int[addresses.length];
+        int n = 0;
+
+        for (int priority : unique.values()) {
+            ordered[n++] = priority;
+        }
+
+        mAddresses = addresses;
+        mParallel = parallel;
+
+        mResults = new int[addresses.length];
+        mStarted = new long[addresses.length];
+        mTimes = new long[addresses.length];
+
+        // -1 marks addresses not started yet
+        Arrays.fill(mStarted, -1);
+
+        mOrder = new Integer[addresses.length];
+
+        for (int i = 0; i < mOrder.length; i++) {
+            mOrder[i] = i;
+        }
+
+        // Stable, so equal priorities keep the order given
+        if (priorities != null) {
+            Arrays.sort(mOrder, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    // Integer.compare(ordered[b], ordered[a]), which is API 19+; a difference overflows
+                    return (ordered[b] < ordered[a]) ? -1 : ((ordered[b] == ordered[a]) ? 0 : 1);
+                }
+            });
+        }
+    }
+
+    // Next address to connect, null if the parallel limit is reached or none are left
+    String next(long now) {
+        if (mRunning >= mParallel || mNext >= mOrder.length) return null;
+
+        int index = mOrder[mNext++];
+        mStarted[index] = now;
+        mRunning++;
+
+        return mAddresses[index];
+    }
+
+    // Returns false if the address is not a running part of this batch
+    boolean onResult(String address, int result, long now) {
+        for (int i = 0; i < mAddresses.length; i++) {
+            if (mResults[i] == RESULT_PENDING && mStarted[i] >= 0 && mAddresses[i].equals(address)) {
+                mResults[i] = result;
+                mTimes[i] = now - mStarted[i];
+                mRunning--;
+                mFinished++;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    boolean isDone() {
+        return mFinished == mAddresses.length;
+    }
+
+    String[] getAddresses() {
+        return mAddresses;
+    }
+
+    int[] getResults() {
+        return mResults;
+    }
+
+    // Time from starting the connect to its outcome, per address in ms
+    long[] getTimes() {
+        return mTimes;
+    }
+}
@@ -9,24 +9,36 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class BTDevice {
     // Debug
     private static final String TAG = "BTDevice";
-    private static final boolean DBG = true;
+    private static final boolean DBG = BTLog.isDebug();
+    private static final int LOG = BTLog.DEVICE;
 
     // Name for SDP record for Server Socket
     private static final String NAME = "BTConnection";
 
     // Standard Serial Port UUID
-    private static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805f9b34fb");
+    static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805f9b34fb");
 
     private String mAddress;
     private String mName;
@@ -43,124 +55,248 @@ public class BTDevice {
         public static final int CONNECTION_FAILED = 4;
         public static final int DATA_SENT = 5;
         public static final int DATA_RECEIVED = 6;
+        public static final int CONNECTION_TIMEOUT = 7;
+    }
+
+    // Connection states, see getState()
+    public static final class State {
+        public static final int DISCONNECTED = 0;
+        public static final int CONNECTING = 1;
+        public static final int CONNECTED = 2;
+        public static final int DRAINING = 3;       // disconnecting, queued data is still written
+        public static final int RECONNECTING = 4;   // connection lost, reconnect attempts running
+        public static final int CLOSED = 5;         // destroyed, final
+    }
+
+    // Called on whichever thread made the transition, must not block. Listeners on different
+    // threads may see transitions out of order, getState() is always current.
+    public interface StateListener {
+        void onStateChanged(BTDevice device, int from, int to);
     }
 
     public static final String EXTRA_ADDRESS = "in.konstant.BT.device.extra.ADDRESS";
-    public static final String EXTRA_DATA = "in.konstant.BT.device.extra.DATA";
 
 //    private final Object mBluetoothService;
 //    private final Class mBluetoothServiceClass;
     private final BluetoothAdapter mBluetoothAdapter;
     private BluetoothDevice mBluetoothDevice;
 
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
+    // State word: generation << STATE_BITS | state, only changed by compare-and-set. connect(),
+    // disconnect() and destroy() start a new generation, so transitions of a connect attempt
+    // or connection they replaced fail instead of overwriting the newer state.
+    private static final int STATE_BITS = 3;
+    private static final long STATE_MASK = (1 << STATE_BITS) - 1;
+
+    // Any state but CLOSED, for restart()
+    private static final int ANY = -1;
+
+    private final AtomicLong mState = new AtomicLong(State.DISCONNECTED);
+
+    private final CopyOnWriteArrayList<StateListener> mStateListeners = new CopyOnWriteArrayList<StateListener>();
+
+    private final BTIOEngine mIOEngine;
+    private final BTChannelCache mChannelCache;
+
+    // Replaces the RFCOMM socket when set, e.g. with BTSimulator's loopback devices
+    private volatile BTTransport.Factory mTransportFactory = null;
+
+    // Current connect attempt and connection, replaced atomically so only one is ever active
+    private final AtomicReference<ConnectTask> mConnectTask = new AtomicReference<ConnectTask>();
+    private final AtomicReference<Connection> mConnection = new AtomicReference<Connection>();
+
+    // Maximum number of reads per read task before it yields to other devices
+    private static final int MAX_READ_BURST = 8;
+
+    // Empty polls in a row after which an idle link waits in a blocking read instead. Only a
+    // read sees the remote end close the link, available() just keeps returning 0.
+    private static final int BLOCKING_READ_POLLS = 16;
+
+    // Receive buffers, recycled by the service once the data has been dispatched
+    private volatile BTBufferPool mBufferPool = new BTBufferPool();
 
-    private int mState;
+    // Outbound queue, drained and coalesced by the write task
+    public static final int DEFAULT_WRITE_QUEUE_SIZE = 64;
+    public static final int DEFAULT_COALESCE_DELAY = 0;
+    private static final int MAX_WRITE_BATCH = 4096;
 
-    private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
+    // Maximum time in ms disconnect() waits for queued data to be written
+    private static final int DRAIN_TIMEOUT = 1000;
+
+    private volatile int mWriteQueueSize = DEFAULT_WRITE_QUEUE_SIZE;
+    private volatile int mCoalesceDelay = DEFAULT_COALESCE_DELAY;
+
+    // Data path counters and histograms, kept across reconnects
+    private final BTStats mStats = new BTStats();
+
+    // Received data waiting for the service, bounded with an overflow policy
+    private volatile BTReceiveQueue mReceiveQueue =
+            new BTReceiveQueue(BTReceiveQueue.DEFAULT_CAPACITY, BTReceiveQueue.BLOCK, mStats);
+
+    // Drains the receive queue instead of the service while set (BTPipe), woken up by the read
+    // task instead of a DATA_RECEIVED notification
+    private volatile Runnable mReceiveConsumer = null;
+
+    // Received data is passed on as raw bytes unless a charset is set for text decoding
+    private volatile Charset mCharset = null;
+
+    // Optional framing of received data, only whole frames are passed on
+    private volatile BTFramer mFramer = null;
+
+    // Automatic reconnect after connection loss. While reconnecting the service is not
+    // notified, only when giving up after mMaxReconnectAttempts (0 = never give up).
+    private volatile boolean mAutoReconnect = false;
+    private volatile BTBackoff mBackoff = new BTBackoff();
+    private volatile int mMaxReconnectAttempts = 0;
+
+    // Deadline for a single connect attempt in ms, 0 waits for the stack's own timeout
+    private volatile int mConnectTimeout = 0;
+
+    private volatile ScheduledFuture<?> mReconnectFuture;
+    private volatile long mLostAt;
+
+    private final AtomicInteger mReconnects = new AtomicInteger();
+    private final AtomicLong mDowntime = new AtomicLong();
+
+    private final Runnable mReconnectTask = new Runnable() {
+        @Override
+        public void run() {
+            long state = mState.get();
 
-    BTDevice(Context context, Handler handler) {
-        if (DBG) Log.d(TAG, "BTDevice()");
+            if ((state & STATE_MASK) != State.RECONNECTING) return;
+
+            // Same BluetoothDevice and socket setup as the initial connect
+            long generation = state >>> STATE_BITS;
+            ConnectTask task = new ConnectTask(generation, mAddress, mBluetoothDevice, true);
+            ConnectTask previous = mConnectTask.get();
+
+            // Never replaces the attempt of a newer connect()
+            if (previous != null && previous.mmGeneration != generation) return;
+            if (!mConnectTask.compareAndSet(previous, task)) return;
+
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "reconnect(" + mAddress + ") attempt " + mBackoff.getAttempts());
+
+            task.run();
+        }
+    };
+
+    BTDevice(Context context, Handler handler, BTIOEngine engine, BTChannelCache cache) {
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "BTDevice()");
 
         mContext = context;
         mHandler = handler;
+        mIOEngine = engine;
+        mChannelCache = cache;
 
 //        mBluetoothService = mContext.getSystemService(Context.BLUETOOTH_SERVICE);
 //        mBluetoothServiceClass = mBluetoothService.getClass();
 
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-
-        mState = STATE_DISCONNECTED;
     }
 
-    BTDevice(Context context, Handler handler, String address) {
-        this(context, handler);
+    BTDevice(Context context, Handler handler, BTIOEngine engine, BTChannelCache cache, String address) {
+        this(context, handler, engine, cache);
 
-        if (DBG) Log.d(TAG, "BTDevice(" + address + ")");
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "BTDevice(" + address + ")");
 
         connect(address);
     }
 
     public void destroy() {
-        if (DBG) Log.d(TAG, "destroy()");
-
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "destroy()");
 
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
+        cancelReconnect();
+        restart(ANY, State.CLOSED);
+        replace(null);
 
-        mState = STATE_DISCONNECTED;
+        mReceiveQueue.clear();
     }
 
     // Interface -----------------------------------------------------------------------------------
 
     public void connect(String address) {
-        if (DBG) Log.d(TAG, "connect(" + address + ")");
+        connect(address, true);
+    }
+
+    // Callers connecting several devices at once cancel discovery once themselves
+    public void connect(String address, boolean cancelDiscovery) {
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "connect(" + address + ")");
 
         mAddress = address;
-        mBluetoothDevice = mBluetoothAdapter.getRemoteDevice(mAddress);
 
-        mName = mBluetoothDevice.getName();
+        if (mTransportFactory == null) {
+            mBluetoothDevice = mBluetoothAdapter.getRemoteDevice(mAddress);
+            mName = mBluetoothDevice.getName();
+        } else {
+            mBluetoothDevice = null;
+            mName = address;
+        }
+
         mManufacturer = ""; // TODO getManufacturer();
         mCompany = ""; // TODO getCompany();
 
-        if (mState == STATE_CONNECTING) {
-            if (mConnectThread != null) {
-                mConnectThread.cancel();
-                mConnectThread = null;
-            }
-        }
+        cancelReconnect();
 
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
+        // The state changes first, a running attempt can't complete after this
+        long generation = restart(ANY, State.CONNECTING);
 
-        mConnectThread = new ConnectThread(mBluetoothDevice);
-        mConnectThread.start();
+        if (generation < 0) return;
 
-        setState(STATE_CONNECTING);
+        ConnectTask task = new ConnectTask(generation, mAddress, mBluetoothDevice, cancelDiscovery);
+
+        replace(task);
+        mIOEngine.connect(task);
     }
 
-    public void send(byte[] data) {
-        if (DBG) Log.d(TAG, "send()");
-        ConnectedThread ct;
+    // Queues data for the write task, never blocks. Returns false if the data was dropped.
+    public boolean send(byte[] data) {
+        if (DBG && BTLog.verbose(LOG)) Log.v(TAG, "send()");
 
-        synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
-            ct = mConnectedThread;
-        }
+        if (getState() != State.CONNECTED) return false;
 
-        ct.write(data);
+        Connection connection = mConnection.get();
+        return connection != null && connection.write(data);
     }
 
+    // Data queued on a connection is still written, DISCONNECTED is reported after that
     public void disconnect() {
-        if (DBG) Log.d(TAG, "disconnect()");
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "disconnect()");
 
-        if (mState == STATE_CONNECTING) {
-            if (mConnectThread != null)
-            {
-                mConnectThread.cancel();
-                mConnectThread = null;
-            }
+        cancelReconnect();
+
+        ConnectTask task = mConnectTask.getAndSet(null);
+
+        if (task != null) {
+            task.cancel();
         }
 
-        if (mConnectedThread != null) {
-            mConnectedThread.close();
-            mConnectedThread = null;
+        if (restart(State.CONNECTED, State.DRAINING) >= 0) {
+            Connection connection = mConnection.get();
+
+            if (connection != null) {
+                connection.drain();
+                return;
+            }
+
+            // Connected but not started yet, connected() drops it
+            if (!transition(State.DRAINING, State.DISCONNECTED)) return;
+        } else if (restart(ANY, State.DISCONNECTED) < 0) {
+            return;
         }
 
-        notifyService(Notification.DISCONNECTED, null);
+        replace(null);
+        notifyService(Notification.DISCONNECTED);
+    }
 
-        setState(STATE_DISCONNECTED);
+    public int getState() {
+        return (int) (mState.get() & STATE_MASK);
+    }
+
+    public void addStateListener(StateListener listener) {
+        mStateListeners.add(listener);
+    }
+
+    public void removeStateListener(StateListener listener) {
+        mStateListeners.remove(listener);
     }
 
     // Setter & Getter -----------------------------------------------------------------------------
@@ -180,6 +316,12 @@ public class BTDevice {
     public UUID[] getUUIDs() {
         ParcelUuid[] parcels = mBluetoothDevice.getUuids();
 
+        // Stack has none at hand, use what the last ACTION_UUID reported
+        if (parcels == null) {
+            UUID[] cached = mChannelCache.getUUIDs(mAddress);
+            return (cached != null) ? cached : new UUID[0];
+        }
+
         ArrayList<UUID> list = new ArrayList<UUID>();
 
         for (ParcelUuid parcel : parcels) {
@@ -189,36 +331,305 @@ public class BTDevice {
         return list.toArray(new UUID[list.size()]);
     }
 
-    public boolean isConnected() {
-        if (mState == STATE_CONNECTED) {
-            return true;
+    public void setReceiveBufferSize(int size) {
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "setReceiveBufferSize(" + size + ")");
+
+        if (size != mBufferPool.getBufferSize()) {
+            // Buffers of the old pool still in flight are simply dropped on recycle()
+            mBufferPool = new BTBufferPool(size, BTBufferPool.DEFAULT_POOL_SIZE);
+        }
+    }
+
+    public int getReceiveBufferSize() {
+        return mBufferPool.getBufferSize();
+    }
+
+    // Applies to the next connection
+    public void setWriteQueueSize(int size) {
+        if (size <= 0) throw new IllegalArgumentException("size <= 0");
+        mWriteQueueSize = size;
+    }
+
+    // Maximum time in ms the write task waits for more data to merge into one socket write
+    public void setCoalesceDelay(int delay) {
+        if (delay < 0) throw new IllegalArgumentException("delay < 0");
+        mCoalesceDelay = delay;
+    }
+
+    public int getWriteQueueDepth() {
+        Connection connection = mConnection.get();
+        return (connection != null) ? connection.getQueueDepth() : 0;
+    }
+
+    public int getWriteDrops() {
+        return (int) mStats.get(BTStats.WRITE_DROPS);
+    }
+
+    BTStats getStats() {
+        return mStats;
+    }
+
+    // Bytes of received data the service hasn't picked up yet before the overflow policy
+    // (BTReceiveQueue.BLOCK, DROP_OLDEST or DROP_NEWEST) kicks in. Data still queued is dropped.
+    public void setReceiveWindow(int capacity, int policy) {
+        BTReceiveQueue queue = new BTReceiveQueue(capacity, policy, mStats);
+        BTReceiveQueue old = mReceiveQueue;
+
+        queue.setAckWindow(old.getAckWindow());
+        queue.setCoalescing(old.getCoalesceSize(), old.getCoalesceDelay());
+        mReceiveQueue = queue;
+        old.clear();
+    }
+
+    // Received data is handed to the service in batches of up to size bytes (0 = no limit),
+    // the first chunk of a batch waits at most delay ms. A delay of 0 hands over every chunk.
+    public void setReceiveCoalescing(int size, int delay) {
+        mReceiveQueue.setCoalescing(size, delay);
+    }
+
+    public boolean isReceiveCoalescing() {
+        return mReceiveQueue.getCoalesceDelay() > 0;
+    }
+
+    public int getReceiveCoalesceSize() {
+        return mReceiveQueue.getCoalesceSize();
+    }
+
+    // Bytes the service delivers before it waits for the client's acks, 0 for no acks
+    public void setAckWindow(int window) {
+        mReceiveQueue.setAckWindow(window);
+    }
+
+    public int getReceiveQueued() {
+        return mReceiveQueue.getBytes();
+    }
+
+    // Next chunk of received data for the service thread, false if there is none to deliver
+    boolean pollReceived(BTReceiveQueue.Chunk chunk) {
+        if (!mReceiveQueue.poll(chunk)) return false;
+
+        Connection connection = mConnection.get();
+
+        if (connection != null) {
+            connection.resume();
+        }
+
+        return true;
+    }
+
+    // Returns a chunk from pollReceived() that could not be delivered, whoever consumes the
+    // queue now gets it first
+    void requeueReceived(BTReceiveQueue.Chunk chunk) {
+        mReceiveQueue.requeue(chunk);
+
+        Runnable consumer = mReceiveConsumer;
+
+        if (consumer == null) {
+            notifyReceived(0);
         } else {
-            return false;
+            consumer.run();
         }
     }
 
+    // The client has processed this many bytes
+    void ackReceived(int bytes) {
+        mReceiveQueue.ack(bytes);
+    }
+
+    // Data still queued when the consumer is removed goes to the service again
+    void setReceiveConsumer(Runnable consumer) {
+        mReceiveConsumer = consumer;
+
+        if (consumer == null) {
+            notifyReceived(0);
+        } else {
+            consumer.run();
+        }
+    }
+
+    boolean hasReceiveConsumer() {
+        return mReceiveConsumer != null;
+    }
+
+    // Whether send() would queue the data right now instead of dropping it
+    boolean canSend() {
+        Connection connection = mConnection.get();
+        return connection != null && isConnected() && connection.hasWriteSpace();
+    }
+
+    // Applies to the next connection. The framer must not be shared with other devices.
+    public void setFramer(BTFramer framer) {
+        mFramer = framer;
+    }
+
+    public BTFramer getFramer() {
+        return mFramer;
+    }
+
+    public void setConnectTimeout(int timeout) {
+        if (timeout < 0) throw new IllegalArgumentException("timeout < 0");
+        mConnectTimeout = timeout;
+    }
+
+    // base and max delay in ms, maxAttempts 0 retries forever
+    public void setAutoReconnect(boolean enabled, int baseDelay, int maxDelay, int maxAttempts) {
+        if (maxAttempts < 0) throw new IllegalArgumentException("maxAttempts < 0");
+
+        mBackoff = new BTBackoff(baseDelay, maxDelay);
+        mMaxReconnectAttempts = maxAttempts;
+        mAutoReconnect = enabled;
+    }
+
+    public boolean isReconnecting() {
+        return getState() == State.RECONNECTING;
+    }
+
+    // Successful reconnects since the device was created
+    public int getReconnects() {
+        return mReconnects.get();
+    }
+
+    // Total time in ms spent reconnecting, including a reconnect still in progress
+    public long getDowntime() {
+        long downtime = mDowntime.get();
+
+        if (isReconnecting()) {
+            downtime += SystemClock.elapsedRealtime() - mLostAt;
+        }
+
+        return downtime;
+    }
+
+    // Applies to the next connect
+    void setTransportFactory(BTTransport.Factory factory) {
+        mTransportFactory = factory;
+    }
+
+    public void setCharset(Charset charset) {
+        mCharset = charset;
+    }
+
+    public Charset getCharset() {
+        return mCharset;
+    }
+
+    public boolean isConnected() {
+        return getState() == State.CONNECTED;
+    }
+
     // Helpers -------------------------------------------------------------------------------------
 
-    private void setState(int state) {
-        if (DBG) Log.d(TAG, "setState(" + state + ")");
-        mState = state;
+    // Starts a new generation in state to, if the device is in state from (or ANY). Returns
+    // the new generation, -1 if the device is in another state or CLOSED.
+    private long restart(int from, int to) {
+        long current;
+        long next;
+
+        do {
+            current = mState.get();
+            int state = (int) (current & STATE_MASK);
+
+            if (state == State.CLOSED || (from != ANY && state != from)) return -1;
+
+            next = (((current >>> STATE_BITS) + 1) << STATE_BITS) | to;
+        } while (!mState.compareAndSet(current, next));
+
+        stateChanged((int) (current & STATE_MASK), to);
+        return next >>> STATE_BITS;
     }
 
-    private void notifyService(int event, byte[] data) {
-        if (DBG) Log.d(TAG, "notifyService(" + event + ")");
+    // Only within the generation of the connect attempt that makes the transition
+    private boolean transition(long generation, int from, int to) {
+        long base = generation << STATE_BITS;
 
-        Message msg = mHandler.obtainMessage(event);
-        Bundle b = new Bundle();
-        b.putString(EXTRA_ADDRESS, mAddress);
+        if (!mState.compareAndSet(base | from, base | to)) return false;
+
+        stateChanged(from, to);
+        return true;
+    }
+
+    // Within the current generation, for transitions of the current connection
+    private boolean transition(int from, int to) {
+        long current;
+
+        do {
+            current = mState.get();
+            if ((current & STATE_MASK) != from) return false;
+        } while (!mState.compareAndSet(current, (current & ~STATE_MASK) | to));
+
+        stateChanged(from, to);
+        return true;
+    }
+
+    // Reconnect statistics follow from the transitions, whoever makes them
+    private void stateChanged(int from, int to) {
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "stateChanged(" + from + " -> " + to + ")");
 
-        if (data != null && data.length > 0) {
-            b.putByteArray(EXTRA_DATA, data);
+        if (to == State.RECONNECTING) {
+            mLostAt = SystemClock.elapsedRealtime();
         }
 
+        if (from == State.RECONNECTING) {
+            mDowntime.addAndGet(SystemClock.elapsedRealtime() - mLostAt);
+
+            if (to == State.CONNECTED) {
+                mReconnects.incrementAndGet();
+            }
+        }
+
+        for (StateListener listener : mStateListeners) {
+            listener.onStateChanged(this, from, to);
+        }
+    }
+
+    // Cancels the current connect attempt and connection
+    private void replace(ConnectTask task) {
+        ConnectTask previous = mConnectTask.getAndSet(task);
+
+        if (previous != null) {
+            previous.cancel();
+        }
+
+        Connection connection = mConnection.getAndSet(null);
+
+        if (connection != null) {
+            connection.cancel();
+        }
+    }
+
+    private void notifyService(int event) {
+        notifyService(event, 0);
+    }
+
+    // arg1 is the byte count for DATA_SENT. DATA_RECEIVED goes through notifyReceived().
+    private void notifyService(int event, int length) {
+        if (DBG && BTLog.verbose(LOG)) Log.v(TAG, "notifyService(" + event + ")");
+
+        // A destroyed device has nothing more to say
+        if (getState() == State.CLOSED) return;
+
+        Message msg = mHandler.obtainMessage(event, length, 0);
+        Bundle b = new Bundle();
+        b.putString(EXTRA_ADDRESS, mAddress);
+
         msg.setData(b);
         mHandler.sendMessage(msg);
     }
 
+    // Tagged with the device so a delayed one can be taken back
+    private void notifyReceived(long delay) {
+        if (DBG && BTLog.verbose(LOG)) Log.v(TAG, "notifyReceived(" + delay + ")");
+
+        if (getState() == State.CLOSED) return;
+
+        Message msg = mHandler.obtainMessage(Notification.DATA_RECEIVED, this);
+        Bundle b = new Bundle();
+        b.putString(EXTRA_ADDRESS, mAddress);
+
+        msg.setData(b);
+        mHandler.sendMessageDelayed(msg, delay);
+    }
+
     public static String getServiceMajorClassName(int majorClass) {
         switch (majorClass) {
             case BluetoothClass.Service.AUDIO:
@@ -273,180 +684,674 @@ public class BTDevice {
 
     // State Changers ------------------------------------------------------------------------------
 
-    private void connected(BluetoothSocket socket, BluetoothDevice device) {
-        if (DBG) Log.d(TAG, "connected(" + socket + ", " + device + ")");
+    // Called on the I/O pool, concurrently with the service thread's connect() and disconnect()
+    private void connected(ConnectTask task, BTTransport transport) {
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "connected(" + transport + ")");
+
+        Connection connection;
+
+        try {
+            connection = new Connection(transport);
+        } catch (IOException e) {
+            // No reader or writer, the link is of no use
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "connected() Socket getStream() failed", e);
+            closeTransport(transport);
+            connectionFailed(task, false);
+            return;
+        }
+
+        mConnectTask.compareAndSet(task, null);
+
+        boolean reconnected = transition(task.mmGeneration, State.RECONNECTING, State.CONNECTED);
+
+        if (!reconnected && !transition(task.mmGeneration, State.CONNECTING, State.CONNECTED)) {
+            // Superseded by connect(), disconnect() or destroy()
+            closeTransport(transport);
+            return;
+        }
+
+        Connection previous = mConnection.getAndSet(connection);
+
+        if (previous != null) {
+            previous.cancel();
+        }
+
+        // A new generation started before the connection was in place and missed it
+        if ((mState.get() >>> STATE_BITS) != task.mmGeneration) {
+            mConnection.compareAndSet(connection, null);
+            connection.cancel();
+            return;
+        }
+
+        connection.start();
+
+        // Clients never saw the connection go away
+        if (!reconnected) {
+            notifyService(Notification.CONNECTED);
+        }
+    }
+
+    private static void closeTransport(BTTransport transport) {
+        try {
+            transport.close();
+        } catch (IOException e) {
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "closeTransport() Socket close() failed", e);
+        }
+    }
+
+    // The connection is gone unless something else replaced it already
+    private void connectionLost(Connection connection) {
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "connectionLost()");
 
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+        if (!mConnection.compareAndSet(connection, null)) return;
+
+        // Was about to go anyway
+        if (transition(State.DRAINING, State.DISCONNECTED)) {
+            notifyService(Notification.DISCONNECTED);
+            return;
         }
 
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        if (mAutoReconnect) {
+            mBackoff.reset();
+
+            if (transition(State.CONNECTED, State.RECONNECTING)) {
+                scheduleReconnect(mState.get() >>> STATE_BITS);
+            }
+
+            return;
         }
 
-        mConnectedThread = new ConnectedThread(socket);
-        mConnectedThread.start();
+        if (transition(State.CONNECTED, State.DISCONNECTED)) {
+            notifyService(Notification.CONNECTION_LOST);
+        }
+    }
+
+    // Also when the draining connection was cancelled
+    private void drained(Connection connection) {
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "drained()");
 
-        notifyService(Notification.CONNECTED, null);
+        mConnection.compareAndSet(connection, null);
 
-        setState(STATE_CONNECTED);
+        if (transition(State.DRAINING, State.DISCONNECTED)) {
+            notifyService(Notification.DISCONNECTED);
+        }
     }
 
-    private void connectionLost() {
-        if (DBG) Log.d(TAG, "connectionLost()");
-        notifyService(Notification.CONNECTION_LOST, null);
-        setState(STATE_DISCONNECTED);
+    private void connectionFailed(ConnectTask task, boolean timeout) {
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "connectionFailed(" + timeout + ")");
+
+        mConnectTask.compareAndSet(task, null);
+
+        if (transition(task.mmGeneration, State.CONNECTING, State.DISCONNECTED)) {
+            notifyService(timeout ? Notification.CONNECTION_TIMEOUT : Notification.CONNECTION_FAILED);
+            return;
+        }
+
+        if (mState.get() == ((task.mmGeneration << STATE_BITS) | State.RECONNECTING)) {
+            scheduleReconnect(task.mmGeneration);
+        }
+    }
+
+    private void scheduleReconnect(long generation) {
+        if (mMaxReconnectAttempts == 0 || mBackoff.getAttempts() < mMaxReconnectAttempts) {
+            mReconnectFuture = mIOEngine.connect(mReconnectTask, mBackoff.next());
+            return;
+        }
+
+        // Giving up, from now on it's a regular connection loss
+        if (transition(generation, State.RECONNECTING, State.DISCONNECTED)) {
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "scheduleReconnect() giving up");
+            notifyService(Notification.CONNECTION_LOST);
+        }
     }
 
-    private void connectionFailed() {
-        if (DBG) Log.d(TAG, "connectionFailed()");
-        notifyService(Notification.CONNECTION_FAILED, null);
-        setState(STATE_DISCONNECTED);
+    // Only stops the timer, the caller moves the device out of RECONNECTING
+    private void cancelReconnect() {
+        ScheduledFuture<?> future = mReconnectFuture;
+
+        if (future != null) {
+            future.cancel(false);
+            mReconnectFuture = null;
+        }
     }
 
-    // Threads -------------------------------------------------------------------------------------
+    // Tasks ---------------------------------------------------------------------------------------
 
-    private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
+    private class ConnectTask implements Runnable {
+        // State generation the attempt belongs to
+        private final long mmGeneration;
+
+        private final String mmAddress;
         private final BluetoothDevice mmDevice;
+        private final BTTransport.Factory mmFactory;
 
-        public ConnectThread(BluetoothDevice device) {
-            if (DBG) Log.d(TAG, "ConnectThread()");
-            mmDevice = device;
-            BluetoothSocket tmp = null;
+        // Socket of the current attempt, closed by cancel()
+        private volatile BluetoothSocket mmSocket;
 
-            try {
-                tmp = device.createRfcommSocketToServiceRecord(SPP_UUID);
-            } catch (IOException e) {
-                if (DBG) Log.d(TAG, "ConnectThread() Socket create() failed", e);
+        private final boolean mmCancelDiscovery;
+
+        private volatile boolean mmCancelled = false;
+        private volatile boolean mmTimedOut = false;
+
+        // Closes the socket when the deadline passes, which makes connect() throw
+        private final Runnable mmTimeoutTask = new Runnable() {
+            @Override
+            public void run() {
+                if (DBG && BTLog.debug(LOG)) Log.d(TAG, "ConnectTask timeout");
+                mmTimedOut = true;
+                cancel();
             }
+        };
 
-            mmSocket = tmp;
+        public ConnectTask(long generation, String address, BluetoothDevice device, boolean cancelDiscovery) {
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "ConnectTask()");
+            mmGeneration = generation;
+            mmAddress = address;
+            mmDevice = device;
+            mmFactory = mTransportFactory;
+            mmCancelDiscovery = cancelDiscovery;
         }
 
         public void run() {
-            if (DBG) Log.d(TAG, "BEGIN ConnectThread");
-            setName("ConnectThread");
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "BEGIN ConnectTask");
 
-            mBluetoothAdapter.cancelDiscovery();
+            if (mmCancelled) return;
 
-            try {
-                mmSocket.connect();
-            } catch (IOException e) {
+            int timeout = mConnectTimeout;
+            ScheduledFuture<?> timer = (timeout > 0) ? mIOEngine.io(mmTimeoutTask, timeout) : null;
+
+            BTTransport transport = (mmFactory != null) ? openTransport() : connectSocket();
+
+            if (transport == null) {
+                if (mmTimedOut) {
+                    connectionFailed(this, true);
+                } else if (!mmCancelled) {
+                    if (timer != null) timer.cancel(false);
+                    connectionFailed(this, false);
+                }
+
+                return;
+            }
+
+            if (timer != null) {
+                timer.cancel(false);
+            }
+
+            // Start reading & writing
+            connected(this, transport);
+
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "END ConnectTask");
+        }
+
+        private BTTransport connectSocket() {
+            if (mmCancelDiscovery) {
+                mBluetoothAdapter.cancelDiscovery();
+            }
+
+            int channel = mChannelCache.getChannel(mmAddress);
+            boolean connected = false;
+
+            // Known channel: skip the SDP query
+            if (channel > 0) {
+                BluetoothSocket socket = BTChannelCache.createSocket(mmDevice, channel);
+
+                connected = tryConnect(socket);
+
+                // Only a refused connect says something about the channel, not a cancel or a
+                // timeout (both close the socket under connect())
+                if (!connected && socket != null && !mmCancelled) {
+                    mChannelCache.invalidate(mmAddress, channel);
+                }
+            }
+
+            // Full SDP lookup of the SPP service
+            if (!connected && !mmCancelled) {
+                BluetoothSocket socket = null;
 
                 try {
-                    mmSocket.close();
-                } catch (IOException e1) {
-                    if (DBG) Log.d (TAG, "ConnectThread run() Socket close() failed", e1);
+                    socket = mmDevice.createRfcommSocketToServiceRecord(SPP_UUID);
+                } catch (IOException e) {
+                    if (DBG && BTLog.debug(LOG)) Log.d(TAG, "ConnectTask run() Socket create() failed", e);
                 }
 
-                connectionFailed();
+                connected = tryConnect(socket);
 
-                return;
+                if (connected) {
+                    mChannelCache.putChannel(mmAddress, socket);
+                }
             }
 
-            // Reset ConnectThread
-            synchronized (BTDevice.this) {
-                mConnectThread = null;
+            return connected ? new BTTransport.Socket(mmSocket) : null;
+        }
+
+        // The factory can't be interrupted, a cancel or timeout during open() is applied after it
+        private BTTransport openTransport() {
+            try {
+                BTTransport transport = mmFactory.open(mmAddress);
+
+                if (mmCancelled) {
+                    transport.close();
+                    return null;
+                }
+
+                return transport;
+            } catch (IOException e) {
+                if (DBG && BTLog.debug(LOG)) Log.d(TAG, "ConnectTask openTransport() failed", e);
+                return null;
+            }
+        }
+
+        private boolean tryConnect(BluetoothSocket socket) {
+            if (socket == null) return false;
+
+            mmSocket = socket;
+
+            // Cancelled while the socket was being created
+            if (mmCancelled) {
+                cancel();
+                return false;
             }
 
-            // Start ConnectedThread
-            connected(mmSocket, mmDevice);
+            try {
+                socket.connect();
+                return true;
+            } catch (IOException e) {
+                if (DBG && BTLog.debug(LOG)) Log.d(TAG, "ConnectTask tryConnect() failed", e);
+
+                try {
+                    socket.close();
+                } catch (IOException e1) {
+                    if (DBG && BTLog.debug(LOG)) Log.d(TAG, "ConnectTask tryConnect() Socket close() failed", e1);
+                }
 
-            if (DBG) Log.d(TAG, "END ConnectThread");
+                return false;
+            }
         }
 
         public void cancel() {
-            if (DBG) Log.d(TAG, "ConnectThread cancel()");
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "ConnectTask cancel()");
+
+            mmCancelled = true;
+
+            BluetoothSocket socket = mmSocket;
+
+            if (socket == null) return;
+
             try {
-                mmSocket.close();
+                socket.close();
             } catch (IOException e) {
-                if (DBG) Log.d(TAG, "ConnectThread cancel() Socket close() failed", e);
+                if (DBG && BTLog.debug(LOG)) Log.d(TAG, "ConnectTask cancel() Socket close() failed", e);
             }
         }
     }
 
 //##################################################################################################
 
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
+    // Reads are polled on the shared I/O pool instead of blocking a thread per device:
+    // the read task drains what is available and reschedules itself, backing off while the
+    // link is idle. Writes are queued and flushed by a write task on the engine's write pool,
+    // scheduled on the first enqueue, merging everything queued within the coalescing delay
+    // into one socket write.
+    private class Connection {
+        private final BTTransport mmTransport;
         private final InputStream mmInStream;
         private final OutputStream mmOutStream;
 
-        private boolean mmConnected = false;
+        private final BlockingQueue<byte[]> mmWriteQueue;
+        private final ByteArrayOutputStream mmBatch;
+        private final AtomicBoolean mmWriteScheduled = new AtomicBoolean(false);
 
-        public ConnectedThread(BluetoothSocket socket) {
-            if (DBG) Log.d(TAG, "ConnectedThread()");
+        // System.nanoTime() when the oldest data of the pending batch was queued
+        private volatile long mmBatchQueued;
 
-            mmSocket = socket;
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
+        private final AtomicBoolean mmConnected = new AtomicBoolean(false);
+
+        // Set by drain(), the connection closes once the write queue is empty
+        private volatile boolean mmDraining = false;
+
+        // Read task stopped for a full receive queue, restarted by resume()
+        private final AtomicBoolean mmPaused = new AtomicBoolean(false);
+
+        // Empty polls in a row, an idle link is polled less often. Only used by the read task.
+        private int mmIdlePolls = 0;
+
+        private final BTFramer mmFramer;
+
+        // Buffer currently being fed to the framer
+        private BTBuffer mmFrameBuffer;
+
+        private final BTFramer.Listener mmFrameListener = new BTFramer.Listener() {
+            @Override
+            public void onFrame(byte[] data, int offset, int length) {
+                BTBuffer frame = mmFrameBuffer;
+
+                if (data == frame.data) {
+                    // Frame lies within the received buffer, pass it on without copying
+                    frame.retain();
+                } else {
+                    // Frame was assembled across reads in the framer's own buffer
+                    frame = mBufferPool.obtain(length);
+                    System.arraycopy(data, offset, frame.data, 0, length);
+                    frame.length = length;
+                    offset = 0;
+                }
+
+                mStats.add(BTStats.FRAMES_IN, 1);
+                receive(frame, offset, length);
+            }
+        };
+
+        private final Runnable mmReadTask = new Runnable() {
+            @Override
+            public void run() {
+                read();
+            }
+        };
+
+        private final Runnable mmBlockingReadTask = new Runnable() {
+            @Override
+            public void run() {
+                blockingRead();
+            }
+        };
+
+        private final Runnable mmWriteTask = new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+
+        // Gives up on data the device doesn't take in time
+        private final Runnable mmDrainTimeoutTask = new Runnable() {
+            @Override
+            public void run() {
+                if (DBG && BTLog.debug(LOG)) Log.d(TAG, "Connection drain() timeout");
+                finishDrain();
+            }
+        };
+
+        // Throws if the transport has no streams, the caller closes it
+        public Connection(BTTransport transport) throws IOException {
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "Connection()");
+
+            mmTransport = transport;
+            mmInStream = transport.getInputStream();
+            mmOutStream = transport.getOutputStream();
+
+            mmConnected.set(true);
+
+            mmWriteQueue = new ArrayBlockingQueue<byte[]>(mWriteQueueSize);
+            mmBatch = new ByteArrayOutputStream(MAX_WRITE_BATCH);
+
+            mmFramer = mFramer;
+
+            if (mmFramer != null) {
+                mmFramer.reset();
+            }
+        }
+
+        public void start() {
+            mIOEngine.io(mmReadTask, 0);
+        }
+
+        private void read() {
+            if (!mmConnected.get()) return;
+
+            int reads = 0;
+            boolean paused = false;
 
             try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
+                while (reads < MAX_READ_BURST && mmInStream.available() > 0) {
+                    if (mReceiveQueue.isFull() && pause()) {
+                        paused = true;
+                        break;
+                    }
+
+                    readChunk();
+                    reads++;
+                }
             } catch (IOException e) {
-                if (DBG) Log.d(TAG, "Connected Thread() Socket getStream() failed", e);
+                if (DBG && BTLog.debug(LOG)) Log.d(TAG, "Connection read() inStream read() failed", e);
+                lost();
+                return;
             }
 
-            mmConnected = true;
-
-            mmInStream = tmpIn;
-            mmOutStream = tmpOut;
+            if (mmConnected.get() && !paused) {
+                // Come back right away while data is flowing, otherwise poll. A link idle for
+                // long gives up its I/O pool slot and waits for data (or its end) instead.
+                if (reads > 0) {
+                    mmIdlePolls = 0;
+                    mIOEngine.io(mmReadTask, 0);
+                } else if (mmIdlePolls >= BLOCKING_READ_POLLS) {
+                    mmIdlePolls = 0;
+                    mIOEngine.blockingRead(mmBlockingReadTask);
+                } else {
+                    mIOEngine.io(mmReadTask, mIOEngine.getPollDelay(mmIdlePolls++));
+                }
+            }
         }
 
-        public void run() {
-            if (DBG) Log.d(TAG, "BEGIN ConnectedThread");
-            setName("ConnectedThread");
+        // Waits for the next chunk, then goes back to polling
+        private void blockingRead() {
+            if (!mmConnected.get()) return;
+
+            if (mReceiveQueue.isFull() && pause()) return;
+
+            try {
+                readChunk();
+            } catch (IOException e) {
+                if (DBG && BTLog.debug(LOG)) Log.d(TAG, "Connection blockingRead() inStream read() failed", e);
+                lost();
+                return;
+            }
 
-            byte[] buffer;
+            if (mmConnected.get()) {
+                mIOEngine.io(mmReadTask, 0);
+            }
+        }
+
+        // One read() into a pooled buffer, passed on as is or through the framer
+        private void readChunk() throws IOException {
+            BTBuffer buffer = mBufferPool.obtain();
             int bytes;
 
-            while (mmConnected) {
+            try {
+                bytes = mmInStream.read(buffer.data);
+
+                if (bytes < 0) {
+                    throw new IOException("End of stream");
+                }
+            } catch (IOException e) {
+                buffer.recycle();
+                throw e;
+            }
+
+            if (bytes == 0) {
+                buffer.recycle();
+                return;
+            }
+
+            buffer.length = bytes;
+
+            mStats.add(BTStats.BYTES_IN, bytes);
+            mStats.add(BTStats.CHUNKS_IN, 1);
+            mStats.record(BTStats.CHUNK_SIZE, bytes);
+
+            if (mmFramer == null) {
+                mStats.add(BTStats.FRAMES_IN, 1);
+                receive(buffer, 0, bytes);
+            } else {
+                mmFrameBuffer = buffer;
+                mmFramer.feed(buffer.data, 0, bytes, mmFrameListener);
+                mmFrameBuffer = null;
+
+                // Frames dispatched from it hold their own references
+                buffer.recycle();
+            }
+        }
+
+        // Hands a chunk to the service, which is only notified if it isn't draining the queue
+        // already. A full batch replaces the delayed notification of a coalescing queue.
+        private void receive(BTBuffer buffer, int offset, int length) {
+            BTReceiveQueue queue = mReceiveQueue;
+            int notify = queue.offer(buffer, offset, length, SystemClock.uptimeMillis());
+            Runnable consumer = mReceiveConsumer;
+
+            // A consumer streams the data, no point in holding it back for a batch
+            if (consumer != null) {
+                if (notify != BTReceiveQueue.NOTIFY_NONE) consumer.run();
+                return;
+            }
+
+            switch (notify) {
+                case BTReceiveQueue.NOTIFY_NOW:
+                    mHandler.removeMessages(Notification.DATA_RECEIVED, BTDevice.this);
+                    notifyReceived(0);
+                    break;
+
+                case BTReceiveQueue.NOTIFY_DELAYED:
+                    notifyReceived(queue.getCoalesceDelay());
+                    break;
+            }
+        }
+
+        // Stops reading until the service has drained the queue, which leaves the data in the
+        // socket and lets RFCOMM flow control hold back the device. Returns false if the queue
+        // was drained in the meantime and reading can go on.
+        private boolean pause() {
+            mmPaused.set(true);
+
+            if (!mReceiveQueue.isFull() && mmPaused.compareAndSet(true, false)) {
+                return false;
+            }
+
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "Connection read() paused");
+            mStats.add(BTStats.RECEIVE_PAUSES, 1);
+            return true;
+        }
+
+        // Called by the service thread after taking data from the queue
+        public void resume() {
+            if (mmPaused.get() && mReceiveQueue.isBelowLowWater() && mmPaused.compareAndSet(true, false)) {
+                if (DBG && BTLog.debug(LOG)) Log.d(TAG, "Connection read() resumed");
+
+                if (mmConnected.get()) {
+                    mIOEngine.io(mmReadTask, 0);
+                }
+            }
+        }
+
+        public boolean write(byte[] buffer) {
+            if (DBG && BTLog.verbose(LOG)) Log.v(TAG, "Connection write()");
+
+            if (!mmConnected.get() || !mmWriteQueue.offer(buffer)) {
+                mStats.add(BTStats.WRITE_DROPS, 1);
+                if (DBG && BTLog.debug(LOG)) Log.d(TAG, "Connection write() queue full, dropped");
+                return false;
+            }
+
+            if (mmWriteScheduled.compareAndSet(false, true)) {
+                mmBatchQueued = System.nanoTime();
+                mIOEngine.write(mmWriteTask, mCoalesceDelay);
+            }
+
+            return true;
+        }
+
+        private void flush() {
+            byte[] data;
+
+            mmBatch.reset();
+
+            while (mmBatch.size() < MAX_WRITE_BATCH && (data = mmWriteQueue.poll()) != null) {
+                mmBatch.write(data, 0, data.length);
+            }
+
+            if (mmBatch.size() > 0 && mmConnected.get()) {
                 try {
-                    buffer = new byte[1024];
-                    bytes = mmInStream.read(buffer);
-                    notifyService(Notification.DATA_RECEIVED, buffer);
+                    mmBatch.writeTo(mmOutStream);
+
+                    mStats.add(BTStats.BYTES_OUT, mmBatch.size());
+                    mStats.add(BTStats.WRITES_OUT, 1);
+                    mStats.record(BTStats.WRITE_LATENCY, (System.nanoTime() - mmBatchQueued) / 1000);
+
+                    notifyService(Notification.DATA_SENT, mmBatch.size());
                 } catch (IOException e) {
-                    if (DBG) Log.d(TAG, "ConnectedThread run() inStream read() failed", e);
-                    if (mmConnected) {
-                        // Only report connection loss if unintentional disconnect
-                        connectionLost();
-                    }
-                    break;
+                    if (DBG && BTLog.debug(LOG)) Log.d(TAG, "Connection flush() outStream write() failed", e);
+                    lost();
+                    return;
                 }
             }
 
-            if (DBG) Log.d(TAG, "END ConnectedThread");
+            mmWriteScheduled.set(false);
+
+            // Left over from a full batch or queued while writing
+            if (!mmWriteQueue.isEmpty() && mmConnected.get()) {
+                if (mmWriteScheduled.compareAndSet(false, true)) {
+                    mmBatchQueued = System.nanoTime();
+                    mIOEngine.write(mmWriteTask, 0);
+                }
+            } else if (mmDraining) {
+                // Read after clearing mmWriteScheduled, drain() schedules a flush otherwise
+                finishDrain();
+            }
         }
 
-        public void write(byte[] buffer) {
-            if (DBG) Log.d(TAG, "ConnectedThread write()");
-            try {
-                mmOutStream.write(buffer);
-                notifyService(Notification.DATA_SENT, buffer);
-            } catch (IOException e) {
-                if (DBG) Log.d(TAG, "ConnectedThread write() outStream write() failed", e);
+        // send() no longer queues anything once the device is DRAINING
+        public void drain() {
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "Connection drain()");
+
+            mmDraining = true;
+            mIOEngine.io(mmDrainTimeoutTask, DRAIN_TIMEOUT);
+
+            if (mmWriteScheduled.compareAndSet(false, true)) {
+                mIOEngine.write(mmWriteTask, 0);
+            }
+        }
+
+        private void finishDrain() {
+            if (mmConnected.compareAndSet(true, false)) {
+                close();
+                drained(this);
             }
         }
 
-        public void close() {
-            if (DBG) Log.d(TAG, "ConnectedThread close()");
+        public int getQueueDepth() {
+            return mmWriteQueue.size();
+        }
 
-            mmConnected = false;
+        public boolean hasWriteSpace() {
+            return mmWriteQueue.remainingCapacity() > 0;
+        }
 
-            cancel();
+        private void lost() {
+            // Only report connection loss once and only if unintentional
+            if (mmConnected.compareAndSet(true, false)) {
+                close();
+                connectionLost(this);
+            }
         }
 
         public void cancel() {
-            if (DBG) Log.d(TAG, "ConnectedThread cancel()");
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "Connection cancel()");
+
+            mmConnected.set(false);
+            close();
+
+            // Nobody else is going to end the drain
+            if (mmDraining) {
+                drained(this);
+            }
+        }
+
+        private void close() {
+            mmWriteQueue.clear();
 
             try {
-                mmSocket.close();
+                mmTransport.close();
             } catch (IOException e) {
-                if (DBG) Log.d(TAG, "ConnectedThread cancel() Socket close() failed", e);
+                if (DBG && BTLog.debug(LOG)) Log.d(TAG, "Connection close() Socket close() failed", e);
             }
         }
     }
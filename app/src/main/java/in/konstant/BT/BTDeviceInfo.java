@@ -0,0 +1,66 @@
+package in.konstant.BT;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+// Snapshot of a device for IBTService.getDeviceInfo()
+public final class BTDeviceInfo implements Parcelable {
+    public final String address;
+    public final String name;
+    public final boolean connected;
+    public final boolean reconnecting;
+    public final int receiveQueued;
+    public final int writeQueueDepth;
+
+    // Indexed by the BTStats counter constants
+    public final long[] counters;
+
+    BTDeviceInfo(String address, String name, boolean connected, boolean reconnecting,
+                 int receiveQueued, int writeQueueDepth, long[] counters) {
+        this.address = address;
+        this.name = name;
+        this.connected = connected;
+        this.reconnecting = reconnecting;
+        this.receiveQueued = receiveQueued;
+        this.writeQueueDepth = writeQueueDepth;
+        this.counters = counters;
+    }
+
+    private BTDeviceInfo(Parcel in) {
+        address = in.readString();
+        name = in.readString();
+        connected = in.readInt() != 0;
+        reconnecting = in.readInt() != 0;
+        receiveQueued = in.readInt();
+        writeQueueDepth = in.readInt();
+        counters = in.createLongArray();
+    }
+
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeString(address);
+        out.writeString(name);
+        out.writeInt(connected ? 1 : 0);
+        out.writeInt(reconnecting ? 1 : 0);
+        out.writeInt(receiveQueued);
+        out.writeInt(writeQueueDepth);
+        out.writeLongArray(counters);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    public static final Parcelable.Creator<BTDeviceInfo> CREATOR = new Parcelable.Creator<BTDeviceInfo>() {
+        @Override
+        public BTDeviceInfo createFromParcel(Parcel in) {
+            return new BTDeviceInfo(in);
+        }
+
+        @Override
+        public BTDeviceInfo[] newArray(int size) {
+            return new BTDeviceInfo[size];
+        }
+    };
+}
@@ -5,21 +5,25 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothClass;
 import android.bluetooth.BluetoothDevice;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
 import android.util.Log;
 import android.view.View;
 import android.view.Window;
 import android.widget.AdapterView;
-import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.ListView;
-import android.widget.TextView;
 import android.widget.Toast;
 
-import java.lang.reflect.Method;
 import java.util.Set;
 
 import in.konstant.btservicetest.R;
@@ -28,7 +32,8 @@ import in.konstant.btservicetest.R;
 public class BTDeviceList extends Activity {
     // Debug
     private static final String TAG = "DeviceListDialog";
-    private static final boolean DBG = true;
+    private static final boolean DBG = BTLog.isDebug();
+    private static final int LOG = BTLog.DEVICE_LIST;
 
     // Return Intent Extra
     public static final String EXTRA_DEVICE_ADDRESS = "device_address";
@@ -36,8 +41,13 @@ public class BTDeviceList extends Activity {
 
     // Member Variables
     private BluetoothAdapter mBluetoothAdapter;
-    private ArrayAdapter<String> mPairedDevicesArrayAdapter;
-    private ArrayAdapter<String> mNewDevicesArrayAdapter;
+    private BTDeviceListAdapter mPairedDevicesAdapter;
+    private BTDeviceListAdapter mNewDevicesAdapter;
+
+    // Discovery results come from the service's cache
+    private Messenger mService = null;
+    private boolean mServiceConnected = false;
+    private final Messenger mIncomingMessenger = new Messenger(new ReplyHandler());
 
     public static void show(Context context) {
         Intent scanIntent = new Intent(context, BTDeviceList.class);
@@ -63,24 +73,21 @@ public class BTDeviceList extends Activity {
             }
         });
 
-        // Init ArrayAdapters & ListViews
-        mPairedDevicesArrayAdapter = new ArrayAdapter<String>(this, R.layout.arrayadapter_devicename);
-        mNewDevicesArrayAdapter = new ArrayAdapter<String>(this, R.layout.arrayadapter_devicename);
-
+        // Init Adapters & ListViews
         ListView listPairedDevices = (ListView) findViewById(R.id.list_paired_devices);
-        listPairedDevices.setAdapter(mPairedDevicesArrayAdapter);
+        mPairedDevicesAdapter = new BTDeviceListAdapter(this, listPairedDevices);
+        listPairedDevices.setAdapter(mPairedDevicesAdapter);
         listPairedDevices.setOnItemClickListener(mDeviceClickListener);
         listPairedDevices.setOnItemLongClickListener(mDeviceLongClickListener);
 
         ListView listNewDevices = (ListView) findViewById(R.id.list_new_devices);
-        listNewDevices.setAdapter(mNewDevicesArrayAdapter);
+        mNewDevicesAdapter = new BTDeviceListAdapter(this, listNewDevices);
+        listNewDevices.setAdapter(mNewDevicesAdapter);
         listNewDevices.setOnItemClickListener(mDeviceClickListener);
         listNewDevices.setOnItemLongClickListener(mDeviceLongClickListener);
 
-        // Register IntentFilters
-        IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
-        filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
-        filter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+        // Register IntentFilters, found devices are reported by the service
+        IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
         filter.addAction(BluetoothDevice.ACTION_PAIRING_REQUEST);
         filter.addAction(BluetoothDevice.ACTION_UUID);
         this.registerReceiver(mReceiver, filter);
@@ -88,6 +95,8 @@ public class BTDeviceList extends Activity {
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
 
         getPairedDevices();
+
+        bindService(new Intent(this, BTService.class), mServiceConnection, Context.BIND_AUTO_CREATE);
     }
 
     @Override
@@ -99,15 +108,21 @@ public class BTDeviceList extends Activity {
         }
 
         this.unregisterReceiver(mReceiver);
+
+        if (mServiceConnected) {
+            // No more discovery replies for this activity
+            sendCommand(BTService.Command.UNREGISTER, null);
+            unbindService(mServiceConnection);
+            mServiceConnected = false;
+        }
     }
 
     private final AdapterView.OnItemClickListener mDeviceClickListener = new AdapterView.OnItemClickListener() {
         public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
             mBluetoothAdapter.cancelDiscovery();
 
-            // Get MAC-Address
-            String info = ((TextView) view).getText().toString();
-            String address = info.substring(info.length() - 17);
+            String address = ((BTDeviceListAdapter) parent.getAdapter()).getAddress(position);
+            if (address == null) return;
 
             Intent intent = new Intent();
             intent.putExtra(EXTRA_DEVICE_ADDRESS, address);
@@ -121,81 +136,41 @@ public class BTDeviceList extends Activity {
         public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
             mBluetoothAdapter.cancelDiscovery();
 
-            // Get MAC-Address
-            String info = ((TextView) view).getText().toString();
-            String address = info.substring(info.length() - 17);
+            String address = ((BTDeviceListAdapter) parent.getAdapter()).getAddress(position);
+            if (address == null) return false;
 
             BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
 
+            // Bonding runs in the service, the result arrives as ACTION_BOND_STATE_CHANGED
+            Bundle data = new Bundle();
+            data.putString(BTService.EXTRA_ADDRESS, address);
+
             if (device.getBondState() == BluetoothDevice.BOND_BONDED) {
-                removeBond(device);
+                sendCommand(BTService.Command.UNBOND, data);
             } else if (device.getBondState() == BluetoothDevice.BOND_NONE) {
-                createBond(device);
+                sendCommand(BTService.Command.BOND, data);
             }
 
             return true;
         }
     };
 
-    private boolean removeBond(BluetoothDevice device){
-        try {
-            Class btClass = Class.forName("android.bluetooth.BluetoothDevice");
-            Method removeBondMethod = btClass.getMethod("removeBond");
-            return (Boolean) removeBondMethod.invoke(device);
-        } catch (Exception e) {
-            if (DBG) Log.d(TAG, "removeBond() failed", e);
-        }
-        return false;
-    }
-
-    private boolean createBond(BluetoothDevice device) {
-        try {
-            Class btClass = Class.forName("android.bluetooth.BluetoothDevice");
-            Method createBondMethod = btClass.getMethod("createBond");
-            return (Boolean) createBondMethod.invoke(device);
-        } catch (Exception e) {
-            if (DBG) Log.d(TAG, "createBond() failed", e);
-        }
-        return false;
-    }
-
     private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
 
-            if (BluetoothDevice.ACTION_FOUND.equals(action)) {
-                BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-
-                if (device.getBondState() != BluetoothDevice.BOND_BONDED) {
-                    String entry = device.getName() +
-                                   " (" + getDeviceMajorClassName(device.getBluetoothClass().getMajorDeviceClass()) + ")" +
-                                   "\n" +
-                                   device.getAddress();
-
-                    if (mNewDevicesArrayAdapter.getPosition(entry) == -1)
-                        mNewDevicesArrayAdapter.add(entry);
-                }
-            } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
-                setProgressBarIndeterminateVisibility(false);
-                setTitle(R.string.text_select_device);
-                findViewById(R.id.button_scan).setVisibility(View.VISIBLE);
-
-                if (mNewDevicesArrayAdapter.getCount() == 0) {
-                    String noDevices = getResources().getText(R.string.text_no_new_devices).toString();
-                    mNewDevicesArrayAdapter.add(noDevices);
-                }
-            } else if (BluetoothDevice.ACTION_PAIRING_REQUEST.equals(action)) {
+            if (BluetoothDevice.ACTION_PAIRING_REQUEST.equals(action)) {
                 int pairingVariant = intent.getIntExtra(BluetoothDevice.EXTRA_PAIRING_VARIANT, -1);
 
                 if (pairingVariant == BluetoothDevice.PAIRING_VARIANT_PASSKEY_CONFIRMATION) {
                     String pairingPasskey = intent.getStringExtra(BluetoothDevice.EXTRA_PAIRING_KEY);
 
-                    if (DBG) Log.d(TAG, "Passkey :" + pairingPasskey);
+                    if (DBG && BTLog.debug(LOG)) Log.d(TAG, "Passkey :" + pairingPasskey);
 
                 } else if (pairingVariant == BluetoothDevice.PAIRING_VARIANT_PIN) {
 
-                    if (DBG) Log.d(TAG, "Pairing via PIN");
+                    if (DBG && BTLog.debug(LOG)) Log.d(TAG, "Pairing via PIN");
                 }
             } else if (BluetoothDevice.ACTION_UUID.equals(action))     {
 
@@ -206,64 +181,162 @@ public class BTDeviceList extends Activity {
 
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
 
-                // Unpaired
+                // Only the affected device moves between the lists
                 if (prevBondState == BluetoothDevice.BOND_BONDED &&
                     currBondState == BluetoothDevice.BOND_NONE) {
 
                     Toast.makeText(getApplicationContext(), "Unpaired " + device.getName(), Toast.LENGTH_SHORT).show();
 
+                    mPairedDevicesAdapter.remove(device.getAddress());
+
                 } else if (prevBondState == BluetoothDevice.BOND_BONDING &&
                            currBondState == BluetoothDevice.BOND_BONDED) {
 
                     Toast.makeText(getApplicationContext(), "Paired with " + device.getName(), Toast.LENGTH_SHORT).show();
 
-                    String entry = device.getName() +
-                            " (" + getDeviceMajorClassName(device.getBluetoothClass().getMajorDeviceClass()) + ")" +
-                            "\n" + device.getAddress();
-
-                    mNewDevicesArrayAdapter.remove(entry);
+                    mNewDevicesAdapter.remove(device.getAddress());
+                    addPairedDevice(device);
                 }
-
-                getPairedDevices();
             }
         }
     };
 
     private void getPairedDevices() {
-        if (DBG) Log.d(TAG, "getPairedDevices()");
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "getPairedDevices()");
 
-        mPairedDevicesArrayAdapter.clear();
+        mPairedDevicesAdapter.setEmptyText(getResources().getText(R.string.text_no_paired_devices).toString());
 
         // get a set of currently paired Devices and list them
         Set<BluetoothDevice> pairedDevices = mBluetoothAdapter.getBondedDevices();
 
-        if (pairedDevices.size() > 0) {
-            findViewById(R.id.title_paired_devices).setVisibility(View.VISIBLE);
-            for (BluetoothDevice device : pairedDevices) {
-                mPairedDevicesArrayAdapter.add(device.getName() +
-                        " (" + getDeviceMajorClassName(device.getBluetoothClass().getMajorDeviceClass()) + ")" +
-                        "\n" + device.getAddress());
-            }
-        } else {
-            String noDevices = getResources().getText(R.string.text_no_paired_devices).toString();
-            mPairedDevicesArrayAdapter.add(noDevices);
+        for (BluetoothDevice device : pairedDevices) {
+            addPairedDevice(device);
         }
     }
 
+    private void addPairedDevice(BluetoothDevice device) {
+        BluetoothClass deviceClass = device.getBluetoothClass();
+
+        findViewById(R.id.title_paired_devices).setVisibility(View.VISIBLE);
+
+        mPairedDevicesAdapter.put(device.getAddress(), device.getName(),
+                (deviceClass != null) ? deviceClass.getDeviceClass() : 0, BTDeviceListAdapter.NO_RSSI);
+    }
+
+    // Forces a new inquiry, the cached devices stay listed while it runs
     private void scanForDevices() {
-        if (DBG) Log.d(TAG, "scanForDevices()");
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "scanForDevices()");
 
-        setProgressBarIndeterminateVisibility(true);
-        setTitle(R.string.text_scanning);
-        mNewDevicesArrayAdapter.clear();
+        Bundle data = new Bundle();
+        data.putBoolean(BTService.EXTRA_REFRESH, true);
+        sendCommand(BTService.Command.GET_DISCOVERED, data);
+    }
+
+    // Discovered Devices --------------------------------------------------------------------------
+
+    private void showDiscovered(Bundle data) {
+        String[] addresses = data.getStringArray(BTService.EXTRA_ADDRESSES);
+        String[] names = data.getStringArray(BTService.EXTRA_NAMES);
+        int[] classes = data.getIntArray(BTService.EXTRA_CLASSES);
+        short[] rssi = data.getShortArray(BTService.EXTRA_RSSI);
 
         findViewById(R.id.title_new_devices).setVisibility(View.VISIBLE);
 
-        if (mBluetoothAdapter.isDiscovering()) {
-            mBluetoothAdapter.cancelDiscovery();
+        // Devices already listed are updated in place
+        for (int i = 0; i < addresses.length; i++) {
+            addNewDevice(addresses[i], names[i], classes[i], rssi[i]);
+        }
+
+        if (data.getBoolean(BTService.EXTRA_REFRESHING, false)) {
+            mNewDevicesAdapter.setEmptyText(null);
+            setProgressBarIndeterminateVisibility(true);
+            setTitle(R.string.text_scanning);
+            findViewById(R.id.button_scan).setVisibility(View.GONE);
+        } else {
+            discoveryFinished();
+        }
+    }
+
+    private void addNewDevice(String address, String name, int deviceClass, short rssi) {
+        // Bonded devices are in the other list
+        if (mPairedDevicesAdapter.contains(address)) return;
+
+        mNewDevicesAdapter.put(address, name, deviceClass, rssi);
+    }
+
+    private void discoveryFinished() {
+        setProgressBarIndeterminateVisibility(false);
+        setTitle(R.string.text_select_device);
+        findViewById(R.id.button_scan).setVisibility(View.VISIBLE);
+
+        mNewDevicesAdapter.setEmptyText(getResources().getText(R.string.text_no_new_devices).toString());
+    }
+
+    // Connection to Service -----------------------------------------------------------------------
+
+    private class ReplyHandler extends Handler {
+        @Override
+        public void handleMessage(Message msg) {
+            if (DBG && BTLog.verbose(LOG)) Log.v(TAG, "handleMessage(" + msg + ")");
+
+            Bundle data = msg.getData();
+
+            switch (msg.what) {
+                case BTService.Reply.DISCOVERED:
+                    showDiscovered(data);
+                    break;
+
+                case BTService.Reply.DEVICE_FOUND:
+                    addNewDevice(data.getString(BTService.EXTRA_ADDRESS),
+                                 data.getString(BTService.EXTRA_NAME),
+                                 data.getInt(BTService.EXTRA_CLASS),
+                                 data.getShort(BTService.EXTRA_RSSI, BTDeviceListAdapter.NO_RSSI));
+                    break;
+
+                case BTService.Reply.DISCOVERY_FINISHED:
+                    discoveryFinished();
+                    break;
+
+                default:
+                    super.handleMessage(msg);
+            }
         }
+    }
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "onServiceConnected()");
+            mService = new Messenger(service);
+            mServiceConnected = true;
 
-        mBluetoothAdapter.startDiscovery();
+            // Cached devices right away, the service refreshes them if they are stale
+            sendCommand(BTService.Command.GET_DISCOVERED, null);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "onServiceDisconnected()");
+            mService = null;
+            mServiceConnected = false;
+        }
+    };
+
+    private void sendCommand(int cmd, Bundle data) {
+        if (!mServiceConnected) return;
+
+        Message msg = Message.obtain(null, cmd);
+        msg.replyTo = mIncomingMessenger;
+
+        if (data != null) {
+            msg.setData(data);
+        }
+
+        try {
+            mService.send(msg);
+        } catch (RemoteException e) {
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "sendCommand(): Service no longer exists");
+        }
     }
 
     private String getServiceMajorClassName(int majorClass) {
@@ -288,33 +361,4 @@ public class BTDeviceList extends Activity {
                 return "Unknown";
         }
     }
-
-    private String getDeviceMajorClassName(int majorClass) {
-        switch (majorClass) {
-            case BluetoothClass.Device.Major.COMPUTER:
-                return "PC";
-            case BluetoothClass.Device.Major.PHONE:
-                return "Phone";
-            case BluetoothClass.Device.Major.IMAGING:
-                return "Imaging";
-            case BluetoothClass.Device.Major.NETWORKING:
-                return "Networking";
-            case BluetoothClass.Device.Major.AUDIO_VIDEO:
-                return "AV";
-            case BluetoothClass.Device.Major.HEALTH:
-                return "Health";
-            case BluetoothClass.Device.Major.PERIPHERAL:
-                return "Peripheral";
-            case BluetoothClass.Device.Major.TOY:
-                return "Toy";
-            case BluetoothClass.Device.Major.WEARABLE:
-                return "Wearable";
-            case BluetoothClass.Device.Major.MISC:
-                return "Misc";
-            case BluetoothClass.Device.Major.UNCATEGORIZED:
-                return "Uncategorized";
-            default:
-                return "Unknown";
-        }
-    }
 }
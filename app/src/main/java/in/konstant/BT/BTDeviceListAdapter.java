@@ -0,0 +1,185 @@
+package in.konstant.BT;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import in.konstant.btservicetest.R;
+
+// Device rows of BTDeviceList, indexed by MAC address so repeated sightings are found in O(1)
+// and only touch their own row instead of rebuilding the list. Used from the main thread only.
+final class BTDeviceListAdapter extends BaseAdapter {
+    public static final short NO_RSSI = Short.MIN_VALUE;
+
+    // BluetoothClass.Device.Major.BITMASK is not public
+    private static final int MAJOR_CLASS_MASK = 0x1F00;
+
+    private static final class Item {
+        final String address;
+        String name;
+        int deviceClass;
+        short rssi;
+
+        Item(String address) {
+            this.address = address;
+        }
+    }
+
+    private final LayoutInflater mInflater;
+    private final ListView mListView;
+
+    // Display order, with the position of every address
+    private final ArrayList<Item> mItems = new ArrayList<Item>();
+    private final HashMap<String, Integer> mPositions = new HashMap<String, Integer>();
+
+    // Shown as a single disabled row while the list is empty, null for none
+    private String mEmptyText;
+
+    BTDeviceListAdapter(Context context, ListView listView) {
+        mInflater = LayoutInflater.from(context);
+        mListView = listView;
+    }
+
+    // Model ---------------------------------------------------------------------------------------
+
+    // Adds the device or updates it in place. Returns true if it was not listed yet.
+    boolean put(String address, String name, int deviceClass, short rssi) {
+        Integer position = mPositions.get(address);
+
+        if (position == null) {
+            Item item = new Item(address);
+            set(item, name, deviceClass, rssi);
+
+            mPositions.put(address, mItems.size());
+            mItems.add(item);
+
+            notifyDataSetChanged();
+            return true;
+        }
+
+        Item item = mItems.get(position);
+
+        if (set(item, name, deviceClass, rssi)) {
+            refreshRow(position);
+        }
+
+        return false;
+    }
+
+    boolean remove(String address) {
+        Integer position = mPositions.remove(address);
+
+        if (position == null) return false;
+
+        mItems.remove((int) position);
+
+        // Only the rows behind the removed one move
+        for (int i = position; i < mItems.size(); i++) {
+            mPositions.put(mItems.get(i).address, i);
+        }
+
+        notifyDataSetChanged();
+        return true;
+    }
+
+    boolean contains(String address) {
+        return mPositions.containsKey(address);
+    }
+
+    void setEmptyText(String text) {
+        mEmptyText = text;
+        if (mItems.isEmpty()) notifyDataSetChanged();
+    }
+
+    // Null for the empty text row
+    String getAddress(int position) {
+        return (position < mItems.size()) ? mItems.get(position).address : null;
+    }
+
+    // Returns false if nothing visible changed
+    private static boolean set(Item item, String name, int deviceClass, short rssi) {
+        // Name is not always part of the inquiry result, keep the one we know
+        if (name == null) name = item.name;
+        if (rssi == NO_RSSI) rssi = item.rssi;
+
+        if (item.rssi == rssi && item.deviceClass == deviceClass &&
+            (name == null ? item.name == null : name.equals(item.name))) return false;
+
+        item.name = name;
+        item.deviceClass = deviceClass;
+        item.rssi = rssi;
+        return true;
+    }
+
+    // Rebinds a single row if it is on screen
+    private void refreshRow(int position) {
+        View row = mListView.getChildAt(position - mListView.getFirstVisiblePosition());
+
+        if (row != null) {
+            bindRow((TextView) row, mItems.get(position));
+        }
+    }
+
+    // Adapter -------------------------------------------------------------------------------------
+
+    @Override
+    public int getCount() {
+        return (mItems.isEmpty() && mEmptyText != null) ? 1 : mItems.size();
+    }
+
+    @Override
+    public Object getItem(int position) {
+        return getAddress(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public boolean areAllItemsEnabled() {
+        return !mItems.isEmpty();
+    }
+
+    @Override
+    public boolean isEnabled(int position) {
+        return position < mItems.size();
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView row = (TextView) ((convertView != null) ? convertView :
+                mInflater.inflate(R.layout.arrayadapter_devicename, parent, false));
+
+        if (position < mItems.size()) {
+            bindRow(row, mItems.get(position));
+        } else {
+            row.setText(mEmptyText);
+        }
+
+        return row;
+    }
+
+    private static void bindRow(TextView row, Item item) {
+        StringBuilder text = new StringBuilder(64);
+
+        text.append(item.name)
+            .append(" (").append(BTDevice.getDeviceMajorClassName(item.deviceClass & MAJOR_CLASS_MASK)).append(')');
+
+        if (item.rssi != NO_RSSI) {
+            text.append(' ').append(item.rssi).append(" dBm");
+        }
+
+        text.append('\n').append(item.address);
+
+        row.setText(text);
+    }
+}
@@ -0,0 +1,219 @@
+package in.konstant.BT;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+// The service's devices keyed by their MAC address packed into a long (48 bits, first octet
+// highest), so lookups neither hash nor compare strings and parsing allocates nothing.
+//
+// Changes are rare (connect, disconnect) and rebuild an open addressing table that is then
+// published as a whole, so lookups and iteration from any thread (binder threads, I/O pool)
+// need no lock and always see a consistent table. Writers are synchronized.
+final class BTDeviceRegistry {
+    // Not a valid address, returned by parse()
+    public static final long INVALID = -1;
+
+    // "00:11:22:AA:BB:CC"
+    public static final int ADDRESS_LENGTH = 17;
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private static final class Table {
+        // Open addressing with linear probing, a capacity of at least twice the size and
+        // INVALID for empty slots
+        final long[] keys;
+        final BTDevice[] values;
+
+        // Registration order, the snapshot handed out by devices()
+        final long[] order;
+        final BTDevice[] devices;
+
+        Table(int size) {
+            int capacity = Integer.highestOneBit(Math.max(4, size * 2) - 1) << 1;
+
+            keys = new long[capacity];
+            values = new BTDevice[capacity];
+            order = new long[size];
+            devices = new BTDevice[size];
+
+            Arrays.fill(keys, INVALID);
+        }
+
+        int slot(long mac) {
+            int mask = keys.length - 1;
+            int i = hash(mac) & mask;
+
+            while (keys[i] != INVALID && keys[i] != mac) {
+                i = (i + 1) & mask;
+            }
+
+            return i;
+        }
+
+        void insert(long mac, BTDevice device, int index) {
+            int i = slot(mac);
+
+            keys[i] = mac;
+            values[i] = device;
+            order[index] = mac;
+            devices[index] = device;
+        }
+    }
+
+    private static final Table EMPTY = new Table(0);
+
+    private volatile Table mTable = EMPTY;
+
+    // Lookup --------------------------------------------------------------------------------------
+
+    BTDevice get(long mac) {
+        if (mac == INVALID) return null;
+
+        Table table = mTable;
+        return table.values[table.slot(mac)];
+    }
+
+    BTDevice get(String address) {
+        return get(parse(address));
+    }
+
+    int size() {
+        return mTable.devices.length;
+    }
+
+    // Consistent snapshot, shared and never modified: callers must not write to it
+    BTDevice[] devices() {
+        return mTable.devices;
+    }
+
+    String[] addresses() {
+        long[] order = mTable.order;
+        String[] addresses = new String[order.length];
+
+        for (int i = 0; i < order.length; i++) {
+            addresses[i] = format(order[i]);
+        }
+
+        return addresses;
+    }
+
+    // Changes -------------------------------------------------------------------------------------
+
+    // Returns the device registered for the address before, if any
+    synchronized BTDevice put(String address, BTDevice device) {
+        long mac = parse(address);
+
+        if (mac == INVALID) throw new IllegalArgumentException("Invalid address " + address);
+
+        Table table = mTable;
+        BTDevice previous = table.values[table.slot(mac)];
+        int size = table.devices.length + ((previous == null) ? 1 : 0);
+
+        Table next = new Table(size);
+        int index = 0;
+
+        for (int i = 0; i < table.devices.length; i++) {
+            next.insert(table.order[i], (table.order[i] == mac) ? device : table.devices[i], index++);
+        }
+
+        if (previous == null) {
+            next.insert(mac, device, index);
+        }
+
+        mTable = next;
+        return previous;
+    }
+
+    synchronized BTDevice remove(String address) {
+        long mac = parse(address);
+        Table table = mTable;
+        BTDevice previous = (mac != INVALID) ? table.values[table.slot(mac)] : null;
+
+        if (previous == null) return null;
+
+        Table next = new Table(table.devices.length - 1);
+        int index = 0;
+
+        for (int i = 0; i < table.devices.length; i++) {
+            if (table.order[i] != mac) {
+                next.insert(table.order[i], table.devices[i], index++);
+            }
+        }
+
+        mTable = next;
+        return previous;
+    }
+
+    synchronized void clear() {
+        mTable = EMPTY;
+    }
+
+    // Addresses -----------------------------------------------------------------------------------
+
+    // "00:11:22:AA:BB:CC" in either case, INVALID for anything else
+    static long parse(CharSequence address) {
+        if (address == null || address.length() != ADDRESS_LENGTH) return INVALID;
+
+        long mac = 0;
+
+        for (int i = 0; i < ADDRESS_LENGTH; i++) {
+            char c = address.charAt(i);
+
+            if (i % 3 == 2) {
+                if (c != ':') return INVALID;
+                continue;
+            }
+
+            int digit = hexDigit(c);
+
+            if (digit < 0) return INVALID;
+
+            mac = (mac << 4) | digit;
+        }
+
+        return mac;
+    }
+
+    // The upper case form every map in the service is keyed on, null if the address is not
+    // valid. Returns the address itself if it already is.
+    static String normalize(String address) {
+        if (parse(address) == INVALID) return null;
+        return address.toUpperCase(Locale.US);
+    }
+
+    // Writes the upper case form into out at offset, which needs ADDRESS_LENGTH chars
+    static void format(long mac, char[] out, int offset) {
+        for (int octet = 0; octet < 6; octet++) {
+            int value = (int) (mac >>> (40 - 8 * octet)) & 0xFF;
+            int i = offset + 3 * octet;
+
+            out[i] = HEX[value >>> 4];
+            out[i + 1] = HEX[value & 0x0F];
+
+            if (octet < 5) {
+                out[i + 2] = ':';
+            }
+        }
+    }
+
+    static String format(long mac) {
+        char[] out = new char[ADDRESS_LENGTH];
+        format(mac, out, 0);
+        return new String(out);
+    }
+
+    // Helpers -------------------------------------------------------------------------------------
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        return -1;
+    }
+
+    // Spreads the vendor and device bits over the low bits used as index
+    private static int hash(long mac) {
+        long h = mac * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32);
+    }
+}
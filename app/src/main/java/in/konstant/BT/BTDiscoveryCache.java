@@ -0,0 +1,160 @@
+package in.konstant.BT;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+// Devices seen during discovery, kept across activities and persisted in SharedPreferences
+// so device lists can be shown without a fresh inquiry. The cache counts as stale once the
+// last completed discovery is older than the TTL. Used from the main thread (broadcasts)
+// and the service thread (commands), hence synchronized.
+final class BTDiscoveryCache {
+    public static final long DEFAULT_TTL = 5 * 60 * 1000;
+
+    private static final String PREFS = "in.konstant.BT.discovery";
+    private static final String KEY_ENTRIES = "entries";
+    private static final String KEY_LAST_DISCOVERY = "last_discovery";
+
+    // An inquiry takes 10.24 s, a discovery finished sooner was cancelled (ms)
+    private static final long INQUIRY_TIME = 10240;
+
+    static final class Entry {
+        final String address;
+        String name;
+        int deviceClass;
+        short rssi;
+        long lastSeen;
+
+        Entry(String address) {
+            this.address = address;
+        }
+    }
+
+    private final SharedPreferences mPrefs;
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>();
+
+    private long mTtl = DEFAULT_TTL;
+    private long mLastDiscovery;
+
+    // SystemClock.elapsedRealtime() when the running discovery started, -1 if not seen
+    private long mDiscoveryStarted = -1;
+
+    BTDiscoveryCache(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        load();
+    }
+
+    synchronized void setTtl(long ttl) {
+        if (ttl < 0) throw new IllegalArgumentException("ttl < 0");
+        mTtl = ttl;
+    }
+
+    synchronized boolean isStale(long now) {
+        return now - mLastDiscovery > mTtl;
+    }
+
+    // Times are wall clock, the entries outlive the process. Only called from the main thread.
+    synchronized Entry update(String address, String name, int deviceClass, short rssi, long now) {
+        Entry entry = mEntries.get(address);
+
+        if (entry == null) {
+            entry = new Entry(address);
+            mEntries.put(address, entry);
+        }
+
+        // Name is not always part of the inquiry result, keep the one we know
+        if (name != null) entry.name = name;
+        entry.deviceClass = deviceClass;
+        entry.rssi = rssi;
+        entry.lastSeen = now;
+
+        return entry;
+    }
+
+    synchronized void discoveryStarted(long elapsed) {
+        mDiscoveryStarted = elapsed;
+    }
+
+    // A completed discovery drops every device it did not see that was already past its TTL.
+    // Finished also means cancelled (connects, bonding, a closed device list), that doesn't
+    // refresh the cache.
+    synchronized void discoveryFinished(long now, long elapsed) {
+        boolean completed = mDiscoveryStarted >= 0 && elapsed - mDiscoveryStarted >= INQUIRY_TIME;
+        mDiscoveryStarted = -1;
+
+        if (!completed) return;
+
+        mLastDiscovery = now;
+
+        for (Iterator<Entry> it = mEntries.values().iterator(); it.hasNext(); ) {
+            if (now - it.next().lastSeen > mTtl) {
+                it.remove();
+            }
+        }
+
+        save();
+    }
+
+    // Copies, the entries themselves keep changing with every sighting
+    synchronized List<Entry> getEntries() {
+        List<Entry> entries = new ArrayList<Entry>(mEntries.size());
+
+        for (Entry entry : mEntries.values()) {
+            Entry copy = new Entry(entry.address);
+            copy.name = entry.name;
+            copy.deviceClass = entry.deviceClass;
+            copy.rssi = entry.rssi;
+            copy.lastSeen = entry.lastSeen;
+            entries.add(copy);
+        }
+
+        return entries;
+    }
+
+    // Persistence ---------------------------------------------------------------------------------
+
+    private void load() {
+        mLastDiscovery = mPrefs.getLong(KEY_LAST_DISCOVERY, 0);
+
+        Set<String> entries = mPrefs.getStringSet(KEY_ENTRIES, null);
+        if (entries == null) return;
+
+        for (String line : entries) {
+            // address, class, rssi, last seen, name (last, may contain anything)
+            String[] fields = line.split("\t", 5);
+            if (fields.length < 5) continue;
+
+            try {
+                Entry entry = new Entry(fields[0]);
+                entry.deviceClass = Integer.parseInt(fields[1]);
+                entry.rssi = Short.parseShort(fields[2]);
+                entry.lastSeen = Long.parseLong(fields[3]);
+                entry.name = fields[4].isEmpty() ? null : fields[4];
+
+                mEntries.put(entry.address, entry);
+            } catch (NumberFormatException e) {
+                // Skip broken entry
+            }
+        }
+    }
+
+    private void save() {
+        Set<String> entries = new HashSet<String>();
+
+        for (Entry entry : mEntries.values()) {
+            entries.add(entry.address + "\t" + entry.deviceClass + "\t" + entry.rssi + "\t" +
+                        entry.lastSeen + "\t" + ((entry.name != null) ? entry.name : ""));
+        }
+
+        mPrefs.edit()
+              .putStringSet(KEY_ENTRIES, entries)
+              .putLong(KEY_LAST_DISCOVERY, mLastDiscovery)
+              .apply();
+    }
+}
@@ -0,0 +1,337 @@
+package in.konstant.BT;
+
+// Incremental framing of a received byte stream. feed() is called with every chunk read from
+// the socket and calls back once per complete frame.
+//
+// Frames that lie completely inside a chunk are passed as a view into the chunk itself, only
+// frames split across reads are assembled in the framer's own buffer. Either way the frame
+// data is only valid during onFrame(). A framer keeps state between chunks and belongs to a
+// single connection, it is not thread safe.
+public abstract class BTFramer {
+    public interface Listener {
+        void onFrame(byte[] data, int offset, int length);
+    }
+
+    public static final int DEFAULT_MAX_FRAME = 4096;
+
+    private final int mMaxFrame;
+
+    // Partial frame carried over from previous chunks
+    private byte[] mPending;
+    private int mPendingLength;
+
+    private int mDropped;
+
+    protected BTFramer(int maxFrame) {
+        if (maxFrame <= 0) throw new IllegalArgumentException("maxFrame <= 0");
+        mMaxFrame = maxFrame;
+    }
+
+    public abstract void feed(byte[] data, int offset, int length, Listener listener);
+
+    public void reset() {
+        mPendingLength = 0;
+    }
+
+    // Number of frames (or partial frames) dropped for exceeding the maximum frame size
+    public int getDropped() {
+        return mDropped;
+    }
+
+    public int getMaxFrame() {
+        return mMaxFrame;
+    }
+
+    // Factories -----------------------------------------------------------------------------------
+
+    public static BTFramer delimiter(byte[] delimiter, boolean strip, int maxFrame) {
+        return new Delimiter(delimiter, strip, maxFrame);
+    }
+
+    public static BTFramer lengthPrefixed(int headerSize, boolean bigEndian, int maxFrame) {
+        return new LengthPrefixed(headerSize, bigEndian, maxFrame);
+    }
+
+    public static BTFramer fixed(int size) {
+        return new Fixed(size);
+    }
+
+    // Pending data --------------------------------------------------------------------------------
+
+    protected final int pendingLength() {
+        return mPendingLength;
+    }
+
+    protected final byte[] pending() {
+        return mPending;
+    }
+
+    // Returns false (and drops the partial frame) if it would grow beyond the maximum frame size
+    protected final boolean append(byte[] data, int offset, int length) {
+        int required = mPendingLength + length;
+
+        if (required > mMaxFrame) {
+            drop();
+            return false;
+        }
+
+        if (mPending == null || mPending.length < required) {
+            int size = (mPending == null) ? 64 : mPending.length;
+            while (size < required) size <<= 1;
+
+            byte[] grown = new byte[Math.min(size, mMaxFrame)];
+            if (mPendingLength > 0) System.arraycopy(mPending, 0, grown, 0, mPendingLength);
+            mPending = grown;
+        }
+
+        System.arraycopy(data, offset, mPending, mPendingLength, length);
+        mPendingLength = required;
+
+        return true;
+    }
+
+    protected final void drop() {
+        mDropped++;
+        mPendingLength = 0;
+    }
+
+    // Delimiter -----------------------------------------------------------------------------------
+
+    private static final class Delimiter extends BTFramer {
+        private final byte[] mmDelimiter;
+        private final int mmStrip;
+
+        // KMP failure table: longest proper prefix of delimiter[0..i] that is also its suffix,
+        // so a mismatch keeps the bytes that can still start the delimiter ("aab" in "aaab")
+        private final int[] mmFailure;
+
+        // Delimiter bytes matched so far, possibly across chunks
+        private int mmMatched;
+
+        // Rest of an oversized frame, skipped up to the next delimiter
+        private boolean mmDiscarding;
+
+        Delimiter(byte[] delimiter, boolean strip, int maxFrame) {
+            super(maxFrame);
+
+            if (delimiter == null || delimiter.length == 0) throw new IllegalArgumentException("delimiter");
+
+            mmDelimiter = delimiter.clone();
+            mmStrip = strip ? delimiter.length : 0;
+            mmFailure = failureTable(mmDelimiter);
+        }
+
+        private static int[] failureTable(byte[] delimiter) {
+            int[] failure = new int[delimiter.length];
+            int k = 0;
+
+            for (int i = 1; i < delimiter.length; i++) {
+                while (k > 0 && delimiter[i] != delimiter[k]) {
+                    k = failure[k - 1];
+                }
+
+                if (delimiter[i] == delimiter[k]) k++;
+
+                failure[i] = k;
+            }
+
+            return failure;
+        }
+
+        @Override
+        public void feed(byte[] data, int offset, int length, Listener listener) {
+            final byte[] delimiter = mmDelimiter;
+            final int[] failure = mmFailure;
+            final int end = offset + length;
+            int start = offset;
+
+            for (int i = offset; i < end; i++) {
+                byte b = data[i];
+
+                while (mmMatched > 0 && b != delimiter[mmMatched]) {
+                    mmMatched = failure[mmMatched - 1];
+                }
+
+                if (b == delimiter[mmMatched]) mmMatched++;
+
+                if (mmMatched < delimiter.length) continue;
+
+                mmMatched = 0;
+
+                int frameLength = i + 1 - start;
+
+                if (mmDiscarding) {
+                    // End of the oversized frame, the next one starts after it
+                    mmDiscarding = false;
+                } else if (pendingLength() == 0) {
+                    if (frameLength <= getMaxFrame()) {
+                        listener.onFrame(data, start, frameLength - mmStrip);
+                    } else {
+                        drop();
+                    }
+                } else if (append(data, start, frameLength)) {
+                    listener.onFrame(pending(), 0, pendingLength() - mmStrip);
+                    reset();
+                }
+
+                start = i + 1;
+            }
+
+            // append() drops the partial frame when it gets too long, its rest follows
+            if (start < end && !mmDiscarding && !append(data, start, end - start)) {
+                mmDiscarding = true;
+            }
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            mmMatched = 0;
+            mmDiscarding = false;
+        }
+    }
+
+    // Length prefixed -----------------------------------------------------------------------------
+
+    private static final class LengthPrefixed extends BTFramer {
+        private final int mmHeaderSize;
+        private final boolean mmBigEndian;
+
+        // Header bytes read so far and the decoded payload length (-1 while reading the header)
+        private int mmHeaderRead;
+        private int mmHeader;
+        private int mmLength = -1;
+
+        // Payload bytes of an oversized frame still to skip
+        private int mmSkip;
+
+        LengthPrefixed(int headerSize, boolean bigEndian, int maxFrame) {
+            super(maxFrame);
+
+            if (headerSize != 1 && headerSize != 2 && headerSize != 4) throw new IllegalArgumentException("headerSize");
+
+            mmHeaderSize = headerSize;
+            mmBigEndian = bigEndian;
+        }
+
+        @Override
+        public void feed(byte[] data, int offset, int length, Listener listener) {
+            final int end = offset + length;
+            int i = offset;
+
+            while (i < end) {
+                if (mmSkip > 0) {
+                    int skipped = Math.min(mmSkip, end - i);
+                    mmSkip -= skipped;
+                    i += skipped;
+                    continue;
+                }
+
+                if (mmLength < 0) {
+                    int b = data[i++] & 0xFF;
+
+                    if (mmBigEndian) {
+                        mmHeader = (mmHeader << 8) | b;
+                    } else {
+                        mmHeader |= b << (8 * mmHeaderRead);
+                    }
+
+                    if (++mmHeaderRead < mmHeaderSize) continue;
+
+                    mmLength = mmHeader;
+                    mmHeader = 0;
+                    mmHeaderRead = 0;
+
+                    if (mmLength > getMaxFrame()) {
+                        // Skipping the payload keeps the stream in sync
+                        drop();
+                        mmSkip = mmLength;
+                        mmLength = -1;
+                        continue;
+                    }
+
+                    if (mmLength < 0) {
+                        // Not a length (4 bytes above 2^31), take the following bytes as the
+                        // next header instead of giving up on the rest of the chunk
+                        drop();
+                        mmLength = -1;
+                        continue;
+                    }
+
+                    if (mmLength == 0) {
+                        listener.onFrame(data, i, 0);
+                        mmLength = -1;
+                    }
+
+                    continue;
+                }
+
+                int missing = mmLength - pendingLength();
+                int available = end - i;
+
+                if (pendingLength() == 0 && available >= missing) {
+                    listener.onFrame(data, i, missing);
+                    i += missing;
+                    mmLength = -1;
+                } else if (available >= missing) {
+                    append(data, i, missing);
+                    listener.onFrame(pending(), 0, pendingLength());
+                    super.reset();
+                    i += missing;
+                    mmLength = -1;
+                } else {
+                    append(data, i, available);
+                    i = end;
+                }
+            }
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            mmHeaderRead = 0;
+            mmHeader = 0;
+            mmLength = -1;
+            mmSkip = 0;
+        }
+    }
+
+    // Fixed size ----------------------------------------------------------------------------------
+
+    private static final class Fixed extends BTFramer {
+        private final int mmSize;
+
+        Fixed(int size) {
+            super(size);
+            mmSize = size;
+        }
+
+        @Override
+        public void feed(byte[] data, int offset, int length, Listener listener) {
+            final int end = offset + length;
+            int i = offset;
+
+            // Complete a frame started in an earlier chunk
+            if (pendingLength() > 0) {
+                int missing = Math.min(mmSize - pendingLength(), length);
+
+                append(data, i, missing);
+                i += missing;
+
+                if (pendingLength() < mmSize) return;
+
+                listener.onFrame(pending(), 0, mmSize);
+                reset();
+            }
+
+            while (end - i >= mmSize) {
+                listener.onFrame(data, i, mmSize);
+                i += mmSize;
+            }
+
+            if (i < end) {
+                append(data, i, end - i);
+            }
+        }
+    }
+}
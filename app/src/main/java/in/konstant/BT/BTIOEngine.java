@@ -0,0 +1,299 @@
+package in.konstant.BT;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Shared thread pools for all BTDevices: a small pool for blocking connects, one for polled
+// socket reads and timers, one for socket writes and one for blocking reads of idle links.
+// Each device keeps at most one read and one write task in flight, which preserves
+// per-device ordering no matter how many threads the pools have.
+//
+// Writes block for as long as the remote device doesn't take the data, so they get a thread
+// each when needed, up to the write thread limit: a stalled link only holds up its own writes,
+// never reads or, until that many links stall at once, other devices. Likewise a link idle for a while waits for data in a blocking read of its own, the only way
+// to see the remote end close it; busy links are polled.
+final class BTIOEngine {
+    // Debug
+    private static final String TAG = "BTIOEngine";
+    private static final boolean DBG = BTLog.isDebug();
+    private static final int LOG = BTLog.ENGINE;
+
+    public static final int DEFAULT_CONNECT_THREADS = 2;
+    public static final int DEFAULT_IO_THREADS = 2;
+    public static final int DEFAULT_WRITE_THREADS = 8;
+
+    // How long a read task waits before polling an idle socket again (ms), doubled for every
+    // empty poll in a row up to MAX_POLL_INTERVAL
+    public static final int DEFAULT_POLL_INTERVAL = 5;
+    public static final int MAX_POLL_INTERVAL = 80;
+
+    // Idle write and blocking read threads go away after this (s)
+    private static final int WRITE_KEEP_ALIVE = 30;
+
+    private final TimedExecutor mConnectPool;
+    private final TimedExecutor mIOPool;
+    private final TimedWritePool mWritePool;
+    private final ThreadPoolExecutor mBlockingReadPool;
+
+    private volatile int mPollInterval = DEFAULT_POLL_INTERVAL;
+
+    private final long mStartTime;
+
+    BTIOEngine() {
+        this(DEFAULT_CONNECT_THREADS, DEFAULT_IO_THREADS);
+    }
+
+    BTIOEngine(int connectThreads, int ioThreads) {
+        mConnectPool = new TimedExecutor(connectThreads, "BTConnect", Process.THREAD_PRIORITY_BACKGROUND);
+        mIOPool = new TimedExecutor(ioThreads, "BTIO", Process.THREAD_PRIORITY_MORE_FAVORABLE);
+        mWritePool = new TimedWritePool(DEFAULT_WRITE_THREADS);
+        mBlockingReadPool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, WRITE_KEEP_ALIVE, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), threadFactory("BTRead", Process.THREAD_PRIORITY_MORE_FAVORABLE));
+        mStartTime = SystemClock.elapsedRealtime();
+    }
+
+    void shutdown() {
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "shutdown()");
+
+        mConnectPool.shutdownNow();
+        mIOPool.shutdownNow();
+        mWritePool.shutdownNow();
+        mBlockingReadPool.shutdownNow();
+    }
+
+    // Tasks ---------------------------------------------------------------------------------------
+
+    ScheduledFuture<?> connect(Runnable task) {
+        return connect(task, 0);
+    }
+
+    ScheduledFuture<?> connect(Runnable task, long delay) {
+        return mConnectPool.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    ScheduledFuture<?> io(Runnable task, long delay) {
+        return mIOPool.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // Blocking socket writes, a delay is waited out on the I/O pool without holding a thread
+    void write(final Runnable task, long delay) {
+        if (delay <= 0) {
+            mWritePool.execute(task);
+            return;
+        }
+
+        mIOPool.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mWritePool.execute(task);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // Blocks until the link has data or ends, then hands back to io()
+    void blockingRead(Runnable task) {
+        mBlockingReadPool.execute(task);
+    }
+
+    // Configuration -------------------------------------------------------------------------------
+
+    void setConnectThreads(int threads) {
+        if (threads <= 0) throw new IllegalArgumentException("threads <= 0");
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "setConnectThreads(" + threads + ")");
+        mConnectPool.setCorePoolSize(threads);
+    }
+
+    void setIOThreads(int threads) {
+        if (threads <= 0) throw new IllegalArgumentException("threads <= 0");
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "setIOThreads(" + threads + ")");
+        mIOPool.setCorePoolSize(threads);
+    }
+
+    void setWriteThreads(int threads) {
+        if (threads <= 0) throw new IllegalArgumentException("threads <= 0");
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "setWriteThreads(" + threads + ")");
+
+        // In this order, the core size must never exceed the maximum
+        if (threads > mWritePool.getMaximumPoolSize()) {
+            mWritePool.setMaximumPoolSize(threads);
+            mWritePool.setCorePoolSize(threads);
+        } else {
+            mWritePool.setCorePoolSize(threads);
+            mWritePool.setMaximumPoolSize(threads);
+        }
+    }
+
+    // At least 1 ms, idle devices would keep the pool spinning otherwise
+    void setPollInterval(int interval) {
+        if (interval <= 0) throw new IllegalArgumentException("interval <= 0");
+        mPollInterval = interval;
+    }
+
+    int getPollInterval() {
+        return mPollInterval;
+    }
+
+    // Delay before the next poll of a socket that was found empty idlePolls times in a row
+    long getPollDelay(int idlePolls) {
+        int interval = mPollInterval;
+        return Math.min(Math.max(interval, MAX_POLL_INTERVAL), (long) interval << Math.min(idlePolls, 16));
+    }
+
+    // Statistics ----------------------------------------------------------------------------------
+
+    int getConnectThreads() {
+        return mConnectPool.getPoolSize();
+    }
+
+    int getIOThreads() {
+        return mIOPool.getPoolSize();
+    }
+
+    // The limit, threads are only started while writes are pending
+    int getWriteThreads() {
+        return mWritePool.getMaximumPoolSize();
+    }
+
+    // Idle links currently waiting in a blocking read, one thread each
+    int getBlockingReads() {
+        return mBlockingReadPool.getActiveCount();
+    }
+
+    int getConnectActive() {
+        return mConnectPool.getActiveCount();
+    }
+
+    int getIOActive() {
+        return mIOPool.getActiveCount();
+    }
+
+    int getWriteActive() {
+        return mWritePool.getActiveCount();
+    }
+
+    int getConnectQueued() {
+        return mConnectPool.getQueue().size();
+    }
+
+    int getIOQueued() {
+        return mIOPool.getQueue().size();
+    }
+
+    int getWriteQueued() {
+        return mWritePool.getQueue().size();
+    }
+
+    // Share of the available thread time spent running tasks since start, in percent
+    int getConnectUtilization() {
+        return utilization(mConnectPool.mBusyTime, mConnectPool.getCorePoolSize());
+    }
+
+    int getIOUtilization() {
+        return utilization(mIOPool.mBusyTime, mIOPool.getCorePoolSize());
+    }
+
+    int getWriteUtilization() {
+        return utilization(mWritePool.mBusyTime, mWritePool.getMaximumPoolSize());
+    }
+
+    private int utilization(BusyTime busyTime, int threads) {
+        long elapsed = SystemClock.elapsedRealtime() - mStartTime;
+
+        if (elapsed <= 0 || threads <= 0) return 0;
+
+        long busy = TimeUnit.NANOSECONDS.toMillis(busyTime.get());
+        return (int) Math.min(100, busy * 100 / (elapsed * threads));
+    }
+
+    // Executor ------------------------------------------------------------------------------------
+
+    private static ThreadFactory threadFactory(final String name, final int priority) {
+        return new ThreadFactory() {
+            private final AtomicInteger mmCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(priority);
+                        r.run();
+                    }
+                }, name + "-" + mmCount.incrementAndGet());
+            }
+        };
+    }
+
+    // Total time the threads of a pool spent running tasks (ns)
+    private static final class BusyTime {
+        private final AtomicLong mmTotal = new AtomicLong();
+        private final ThreadLocal<long[]> mmTaskStart = new ThreadLocal<long[]>() {
+            @Override
+            protected long[] initialValue() {
+                return new long[1];
+            }
+        };
+
+        void begin() {
+            mmTaskStart.get()[0] = System.nanoTime();
+        }
+
+        void end() {
+            mmTotal.addAndGet(System.nanoTime() - mmTaskStart.get()[0]);
+        }
+
+        long get() {
+            return mmTotal.get();
+        }
+    }
+
+    private static final class TimedExecutor extends ScheduledThreadPoolExecutor {
+        private final BusyTime mBusyTime = new BusyTime();
+
+        TimedExecutor(int threads, String name, int priority) {
+            super(threads, threadFactory(name, priority));
+        }
+
+        @Override
+        protected void beforeExecute(Thread t, Runnable r) {
+            mBusyTime.begin();
+        }
+
+        @Override
+        protected void afterExecute(Runnable r, Throwable t) {
+            mBusyTime.end();
+        }
+    }
+
+    // Starts a thread per pending write up to the limit, then queues them. Idle threads go away.
+    private static final class TimedWritePool extends ThreadPoolExecutor {
+        private final BusyTime mBusyTime = new BusyTime();
+
+        TimedWritePool(int threads) {
+            super(threads, threads, WRITE_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                  threadFactory("BTWrite", Process.THREAD_PRIORITY_MORE_FAVORABLE));
+            allowCoreThreadTimeOut(true);
+        }
+
+        @Override
+        protected void beforeExecute(Thread t, Runnable r) {
+            mBusyTime.begin();
+        }
+
+        @Override
+        protected void afterExecute(Runnable r, Throwable t) {
+            mBusyTime.end();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package in.konstant.BT;
+
+import android.util.Log;
+
+// Log levels per subsystem. Guard log statements like
+//
+//     if (DBG && BTLog.debug(LOG)) Log.d(TAG, "connect(" + address + ")");
+//
+// with DBG = BTLog.isDebug(): release builds skip the statement on a constant check, debug
+// builds only build the message when the subsystem's level lets it through.
+public final class BTLog {
+    // Set by the app from its build type through setDebug(), off until then
+    private static volatile boolean sDebug = false;
+
+    // Subsystems
+    public static final int DEVICE = 0;
+    public static final int SERVICE = 1;
+    public static final int DEVICE_LIST = 2;
+    public static final int ENGINE = 3;
+    public static final int CLIENT = 4;
+
+    private static final int SUBSYSTEMS = 5;
+
+    // Levels are the android.util.Log priorities, NONE switches a subsystem off completely
+    public static final int NONE = Log.ASSERT + 1;
+
+    // Written rarely, read on every log statement; a stale level for a moment is harmless
+    private static final int[] sLevels = new int[SUBSYSTEMS];
+
+    static {
+        for (int i = 0; i < SUBSYSTEMS; i++) {
+            sLevels[i] = Log.WARN;
+        }
+    }
+
+    private BTLog() {
+    }
+
+    // Call before touching any other BT class: they copy the flag into DBG when loaded.
+    // Also resets every subsystem to the default level for the build type.
+    public static void setDebug(boolean debug) {
+        sDebug = debug;
+        setLevel(debug ? Log.DEBUG : Log.WARN);
+    }
+
+    public static boolean isDebug() {
+        return sDebug;
+    }
+
+    public static boolean isSubsystem(int subsystem) {
+        return subsystem >= 0 && subsystem < SUBSYSTEMS;
+    }
+
+    public static boolean isLevel(int level) {
+        return level >= Log.VERBOSE && level <= NONE;
+    }
+
+    public static void setLevel(int subsystem, int level) {
+        if (!isSubsystem(subsystem)) throw new IllegalArgumentException("subsystem");
+        sLevels[subsystem] = level;
+    }
+
+    public static void setLevel(int level) {
+        for (int i = 0; i < SUBSYSTEMS; i++) {
+            sLevels[i] = level;
+        }
+    }
+
+    public static int getLevel(int subsystem) {
+        return sLevels[subsystem];
+    }
+
+    public static boolean verbose(int subsystem) {
+        return sLevels[subsystem] <= Log.VERBOSE;
+    }
+
+    public static boolean debug(int subsystem) {
+        return sLevels[subsystem] <= Log.DEBUG;
+    }
+
+    public static boolean info(int subsystem) {
+        return sLevels[subsystem] <= Log.INFO;
+    }
+
+    public static boolean warn(int subsystem) {
+        return sLevels[subsystem] <= Log.WARN;
+    }
+
+    public static boolean error(int subsystem) {
+        return sLevels[subsystem] <= Log.ERROR;
+    }
+}
@@ -0,0 +1,211 @@
+package in.konstant.BT;
+
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+// Raw byte stream between a client and one connected device over a pair of pipes, for
+// consumers that just want the bytes. Received data goes from the device's receive queue
+// straight into one pipe, whatever the client writes into the other one is queued for the
+// device, without a Message or Bundle per chunk.
+//
+// Pipe I/O blocks, so each direction has its own thread instead of the shared I/O pool.
+// A slow reader fills the pipe, then the receive queue and finally RFCOMM flow control.
+// The send thread ends when the client closes its write end or the pipe is closed.
+final class BTPipe {
+    // Debug
+    private static final String TAG = "BTPipe";
+    private static final boolean DBG = BTLog.isDebug();
+    private static final int LOG = BTLog.SERVICE;
+
+    private static final int WRITE_BUFFER_SIZE = 8192;
+    private static final int READ_BUFFER_SIZE = 1024;
+
+    // Polling interval while the device's write queue is full (ms)
+    private static final int SEND_RETRY_DELAY = 10;
+
+    private final String mAddress;
+    private final BTDevice mDevice;
+
+    // Client ends, handed out once
+    private ParcelFileDescriptor mClientRead;
+    private ParcelFileDescriptor mClientWrite;
+
+    // Service ends
+    private final ParcelFileDescriptor mReceiveSink;
+    private final InputStream mSendSource;
+
+    private final Thread mReceiveThread;
+    private final Thread mSendThread;
+
+    private final AtomicBoolean mOpen = new AtomicBoolean(true);
+
+    private final Runnable mWakeup = new Runnable() {
+        @Override
+        public void run() {
+            LockSupport.unpark(mReceiveThread);
+        }
+    };
+
+    static BTPipe open(String address, BTDevice device) throws IOException {
+        ParcelFileDescriptor[] receive = ParcelFileDescriptor.createPipe();
+        ParcelFileDescriptor[] send;
+
+        try {
+            send = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            closeQuietly(receive[0]);
+            closeQuietly(receive[1]);
+            throw e;
+        }
+
+        return new BTPipe(address, device, receive, send);
+    }
+
+    private BTPipe(String address, BTDevice device, ParcelFileDescriptor[] receive, ParcelFileDescriptor[] send) {
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "BTPipe(" + address + ")");
+
+        mAddress = address;
+        mDevice = device;
+
+        mClientRead = receive[0];
+        mReceiveSink = receive[1];
+        mSendSource = new ParcelFileDescriptor.AutoCloseInputStream(send[0]);
+        mClientWrite = send[1];
+
+        mReceiveThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receive();
+            }
+        }, "BTPipeReceive-" + address);
+
+        mSendThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                send();
+            }
+        }, "BTPipeSend-" + address);
+
+        // The pipe is the flow control, there are no acks
+        mDevice.setAckWindow(0);
+        mDevice.setReceiveConsumer(mWakeup);
+
+        mReceiveThread.start();
+        mSendThread.start();
+    }
+
+    ParcelFileDescriptor getClientReadFd() {
+        return mClientRead;
+    }
+
+    ParcelFileDescriptor getClientWriteFd() {
+        return mClientWrite;
+    }
+
+    // Once the client ends were sent to another process, the service's copies have to go or
+    // the pipe would never see the client close them
+    void releaseClientFds() {
+        closeQuietly(mClientRead);
+        closeQuietly(mClientWrite);
+    }
+
+    boolean isOpen() {
+        return mOpen.get();
+    }
+
+    // The client sees the end of its read stream once the receive thread has flushed what it
+    // took from the queue. Received data not written yet goes back to the service.
+    void close() {
+        if (!mOpen.compareAndSet(true, false)) return;
+
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "close(" + mAddress + ")");
+
+        mDevice.setReceiveConsumer(null);
+
+        // Closing the stream (not just the descriptor) wakes the send thread blocked in read()
+        closeQuietly(mSendSource);
+        LockSupport.unpark(mReceiveThread);
+    }
+
+    // Threads -------------------------------------------------------------------------------------
+
+    private void receive() {
+        OutputStream out = new BufferedOutputStream(new ParcelFileDescriptor.AutoCloseOutputStream(mReceiveSink),
+                                                    WRITE_BUFFER_SIZE);
+        BTReceiveQueue.Chunk chunk = new BTReceiveQueue.Chunk();
+
+        try {
+            while (mOpen.get()) {
+                if (mDevice.pollReceived(chunk)) {
+                    out.write(chunk.buffer.data, chunk.offset, chunk.length);
+
+                    chunk.buffer.recycle();
+                    chunk.buffer = null;
+                } else {
+                    // One write per burst, then wait for the read task
+                    out.flush();
+                    LockSupport.park(this);
+                }
+            }
+
+            // What was taken from the queue still reaches the client
+            out.flush();
+        } catch (IOException e) {
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "receive() client closed", e);
+        } finally {
+            // A chunk the client didn't get goes back to the queue
+            if (chunk.buffer != null) {
+                mDevice.requeueReceived(chunk);
+                chunk.buffer = null;
+            }
+
+            closeQuietly(out);
+        }
+
+        close();
+    }
+
+    private void send() {
+        InputStream in = mSendSource;
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        int bytes;
+
+        try {
+            while ((bytes = in.read(buffer)) >= 0) {
+                if (bytes == 0) continue;
+
+                // Hold the client back instead of letting the write queue drop the data
+                while (!mDevice.canSend()) {
+                    if (!mOpen.get() || !mDevice.isConnected()) return;
+                    SystemClock.sleep(SEND_RETRY_DELAY);
+                }
+
+                mDevice.send(Arrays.copyOf(buffer, bytes));
+            }
+        } catch (IOException e) {
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "send() failed", e);
+        } finally {
+            closeQuietly(mSendSource);
+        }
+
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "send() client closed");
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+}
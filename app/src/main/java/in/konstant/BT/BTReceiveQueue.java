@@ -0,0 +1,272 @@
+package in.konstant.BT;
+
+// Received chunks of one device on their way from the read task to the service thread,
+// bounded by the number of bytes they hold. The overflow policy decides what happens when
+// the service falls behind: BLOCK makes the read task stop reading until the queue has
+// drained to half its capacity, so RFCOMM flow control throttles the remote device; the
+// DROP policies keep the socket drained and discard data instead.
+//
+// Delivery can additionally be held back until the client has acknowledged what it already
+// got (ack window), which fills the queue and pushes back all the way to the device.
+//
+// The read task only notifies the service when the queue turns non-empty, the service then
+// polls until it is empty again. Only one notification per device is ever pending. With
+// coalescing the notification is delayed until the queue holds a batch of the coalescing
+// size or its oldest chunk has waited the coalescing delay, whichever comes first.
+final class BTReceiveQueue {
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    // Overflow policies
+    public static final int BLOCK = 0;
+    public static final int DROP_OLDEST = 1;
+    public static final int DROP_NEWEST = 2;
+
+    // What offer() asks the read task to do
+    public static final int NOTIFY_NONE = 0;
+    public static final int NOTIFY_NOW = 1;
+    public static final int NOTIFY_DELAYED = 2;    // after getCoalesceDelay()
+
+    private static final int INITIAL_CHUNKS = 16;
+
+    // A queued slice of a buffer, filled in by poll(). The poller owns the buffer reference.
+    static final class Chunk {
+        BTBuffer buffer;
+        int offset;
+        int length;
+        long queued;    // SystemClock.uptimeMillis() when it was offered
+    }
+
+    private final int mCapacity;
+    private final int mPolicy;
+    private final BTStats mStats;
+
+    // Ring of parallel arrays, grown as needed and then reused
+    private BTBuffer[] mBuffers;
+    private int[] mOffsets;
+    private int[] mLengths;
+    private long[] mQueued;
+
+    private int mHead = 0;
+    private int mCount = 0;
+    private int mBytes = 0;
+
+    // Notification pending since the queue turned non-empty, NOTIFY_NONE once the service
+    // has found it empty again
+    private int mNotified = NOTIFY_NONE;
+
+    // Coalescing is off with a delay of 0, a size of 0 only flushes on the delay
+    private int mCoalesceSize = 0;
+    private int mCoalesceDelay = 0;
+
+    // Bytes delivered but not acknowledged by the client yet, 0 window = no acks
+    private int mAckWindow = 0;
+    private int mUnacked = 0;
+
+    BTReceiveQueue(int capacity, int policy, BTStats stats) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity <= 0");
+        if (policy < BLOCK || policy > DROP_NEWEST) throw new IllegalArgumentException("policy");
+
+        mCapacity = capacity;
+        mPolicy = policy;
+        mStats = stats;
+
+        mBuffers = new BTBuffer[INITIAL_CHUNKS];
+        mOffsets = new int[INITIAL_CHUNKS];
+        mLengths = new int[INITIAL_CHUNKS];
+        mQueued = new long[INITIAL_CHUNKS];
+    }
+
+    // Read Task -----------------------------------------------------------------------------------
+
+    // Checked by the read task before every read with BLOCK. A single read may still overshoot
+    // the capacity by what it returns.
+    synchronized boolean isFull() {
+        return mBytes >= mCapacity;
+    }
+
+    // Takes over the caller's reference on the buffer. Returns how the service has to be
+    // notified: NOTIFY_NOW replaces a delayed notification still pending.
+    synchronized int offer(BTBuffer buffer, int offset, int length, long now) {
+        if (mPolicy != BLOCK && mBytes + length > mCapacity) {
+            if (mPolicy == DROP_NEWEST || length > mCapacity) {
+                drop(buffer, length, BTStats.DROPS_NEWEST);
+                return NOTIFY_NONE;
+            }
+
+            while (mBytes + length > mCapacity) {
+                drop(mBuffers[mHead], mLengths[mHead], BTStats.DROPS_OLDEST);
+                removeHead();
+            }
+        }
+
+        if (mCount == mBuffers.length) {
+            grow();
+        }
+
+        int tail = (mHead + mCount) % mBuffers.length;
+
+        mBuffers[tail] = buffer;
+        mOffsets[tail] = offset;
+        mLengths[tail] = length;
+        mQueued[tail] = now;
+
+        mCount++;
+        mBytes += length;
+
+        if (mNotified == NOTIFY_NOW) return NOTIFY_NONE;
+
+        // Batch not complete yet, the delay bounds how long the first chunk waits
+        if (mCoalesceDelay > 0 && (mCoalesceSize == 0 || mBytes < mCoalesceSize)) {
+            if (mNotified == NOTIFY_DELAYED) return NOTIFY_NONE;
+
+            mNotified = NOTIFY_DELAYED;
+            return NOTIFY_DELAYED;
+        }
+
+        mNotified = NOTIFY_NOW;
+        return NOTIFY_NOW;
+    }
+
+    // Service Thread ------------------------------------------------------------------------------
+
+    // Returns false if the queue is empty or the ack window is used up
+    synchronized boolean poll(Chunk chunk) {
+        if (mAckWindow > 0 && mUnacked >= mAckWindow) {
+            // Stays notified, the next ack() is followed by another poll
+            if (mCount > 0) mStats.add(BTStats.ACK_STALLS, 1);
+            return false;
+        }
+
+        if (mCount == 0) {
+            mNotified = NOTIFY_NONE;
+            return false;
+        }
+
+        chunk.buffer = mBuffers[mHead];
+        chunk.offset = mOffsets[mHead];
+        chunk.length = mLengths[mHead];
+        chunk.queued = mQueued[mHead];
+
+        removeHead();
+
+        if (mAckWindow > 0) {
+            mUnacked += chunk.length;
+        }
+
+        return true;
+    }
+
+    // Puts a chunk from poll() back at the head, for a consumer that couldn't pass it on.
+    // Takes over the chunk's buffer reference.
+    synchronized void requeue(Chunk chunk) {
+        if (mCount == mBuffers.length) {
+            grow();
+        }
+
+        mHead = (mHead + mBuffers.length - 1) % mBuffers.length;
+
+        mBuffers[mHead] = chunk.buffer;
+        mOffsets[mHead] = chunk.offset;
+        mLengths[mHead] = chunk.length;
+        mQueued[mHead] = chunk.queued;
+
+        mCount++;
+        mBytes += chunk.length;
+
+        if (mAckWindow > 0) {
+            mUnacked = Math.max(0, mUnacked - chunk.length);
+        }
+    }
+
+    // Reading resumes once the service has caught up to half the capacity
+    synchronized boolean isBelowLowWater() {
+        return mBytes <= mCapacity / 2;
+    }
+
+    // size in bytes, delay in ms
+    synchronized void setCoalescing(int size, int delay) {
+        if (size < 0) throw new IllegalArgumentException("size < 0");
+        if (delay < 0) throw new IllegalArgumentException("delay < 0");
+
+        mCoalesceSize = size;
+        mCoalesceDelay = delay;
+    }
+
+    synchronized int getCoalesceSize() {
+        return mCoalesceSize;
+    }
+
+    synchronized int getCoalesceDelay() {
+        return mCoalesceDelay;
+    }
+
+    synchronized void setAckWindow(int window) {
+        if (window < 0) throw new IllegalArgumentException("window < 0");
+        mAckWindow = window;
+        mUnacked = 0;
+    }
+
+    synchronized int getAckWindow() {
+        return mAckWindow;
+    }
+
+    synchronized void ack(int bytes) {
+        mUnacked = Math.max(0, mUnacked - bytes);
+    }
+
+    synchronized int getBytes() {
+        return mBytes;
+    }
+
+    // Recycles everything still queued
+    synchronized void clear() {
+        while (mCount > 0) {
+            mBuffers[mHead].recycle();
+            removeHead();
+        }
+
+        mNotified = NOTIFY_NONE;
+        mUnacked = 0;
+    }
+
+    // Helpers -------------------------------------------------------------------------------------
+
+    private void removeHead() {
+        mBytes -= mLengths[mHead];
+        mBuffers[mHead] = null;
+        mHead = (mHead + 1) % mBuffers.length;
+        mCount--;
+    }
+
+    private void drop(BTBuffer buffer, int length, int counter) {
+        buffer.recycle();
+
+        mStats.add(counter, 1);
+        mStats.add(BTStats.DROPPED_BYTES, length);
+    }
+
+    private void grow() {
+        int size = mBuffers.length;
+
+        BTBuffer[] buffers = new BTBuffer[2 * size];
+        int[] offsets = new int[2 * size];
+        int[] lengths = new int[2 * size];
+        long[] queued = new long[2 * size];
+
+        // Unwrap the ring so the head ends up at index 0
+        for (int i = 0; i < mCount; i++) {
+            int j = (mHead + i) % size;
+
+            buffers[i] = mBuffers[j];
+            offsets[i] = mOffsets[j];
+            lengths[i] = mLengths[j];
+            queued[i] = mQueued[j];
+        }
+
+        mBuffers = buffers;
+        mOffsets = offsets;
+        mLengths = lengths;
+        mQueued = queued;
+        mHead = 0;
+    }
+}
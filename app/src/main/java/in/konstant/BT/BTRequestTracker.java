@@ -0,0 +1,160 @@
+package in.konstant.BT;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+// Correlates requests sent to one device with the responses it returns, allowing up to
+// 'window' requests in flight at the same time.
+//
+// Responses are matched either in order (FIFO, for devices answering strictly in sequence)
+// or by a one byte correlation ID the tracker writes into every request at 'idOffset' and
+// expects back at the same offset in the response. Not thread safe, owned by the service thread.
+final class BTRequestTracker {
+    public static final int FIFO = -1;
+    public static final int DEFAULT_WINDOW = 4;
+    public static final int MAX_WINDOW = 256;
+
+    static final class Request {
+        final int id;
+        final int tag;
+        final byte[] payload;
+        final long timeout;
+
+        long sent;
+        long deadline;
+
+        Request(int id, int tag, byte[] payload, long timeout) {
+            this.id = id;
+            this.tag = tag;
+            this.payload = payload;
+            this.timeout = timeout;
+        }
+    }
+
+    private final String mAddress;
+    private final int mWindow;
+    private final int mIdOffset;
+
+    // In send order
+    private final ArrayDeque<Request> mInFlight = new ArrayDeque<Request>();
+    // Waiting for a free slot in the window
+    private final ArrayDeque<Request> mQueued = new ArrayDeque<Request>();
+
+    private int mNextId;
+
+    BTRequestTracker(String address, int window, int idOffset) {
+        if (!isValid(window, idOffset)) throw new IllegalArgumentException("window or idOffset");
+
+        mAddress = address;
+        mWindow = window;
+        mIdOffset = idOffset;
+    }
+
+    // For checking client input before constructing a tracker
+    static boolean isValid(int window, int idOffset) {
+        return window > 0 && window <= MAX_WINDOW && idOffset >= FIFO;
+    }
+
+    String getAddress() {
+        return mAddress;
+    }
+
+    // Whether submit() takes the payload, i.e. it has room for the ID
+    boolean accepts(byte[] payload) {
+        return mIdOffset == FIFO || payload.length > mIdOffset;
+    }
+
+    // The payload is modified in ID mode, callers must pass their own copy
+    Request submit(byte[] payload, int tag, long timeout) {
+        int id = mNextId++;
+
+        if (mIdOffset != FIFO) {
+            if (payload.length <= mIdOffset) throw new IllegalArgumentException("payload too short for ID");
+            payload[mIdOffset] = (byte) id;
+        }
+
+        Request request = new Request(id, tag, payload, timeout);
+        mQueued.addLast(request);
+
+        return request;
+    }
+
+    // Next request allowed to go out now, or null if the window is full or nothing is queued
+    Request nextToSend(long now) {
+        if (mInFlight.size() >= mWindow || mQueued.isEmpty()) return null;
+
+        Request request = mQueued.pollFirst();
+        request.sent = now;
+        request.deadline = now + request.timeout;
+        mInFlight.addLast(request);
+
+        return request;
+    }
+
+    // Removes and returns the request the response belongs to, null if it is unsolicited
+    Request match(byte[] data, int offset, int length) {
+        if (mIdOffset == FIFO) {
+            return mInFlight.pollFirst();
+        }
+
+        if (length <= mIdOffset) return null;
+
+        int id = data[offset + mIdOffset] & 0xFF;
+
+        for (Iterator<Request> it = mInFlight.iterator(); it.hasNext(); ) {
+            Request request = it.next();
+
+            if ((request.id & 0xFF) == id) {
+                it.remove();
+                return request;
+            }
+        }
+
+        return null;
+    }
+
+    // Forgets a request, e.g. because it could not be sent
+    void cancel(Request request) {
+        if (!mInFlight.remove(request)) {
+            mQueued.remove(request);
+        }
+    }
+
+    // Removes and returns one request whose deadline has passed, null if there is none
+    Request expire(long now) {
+        for (Iterator<Request> it = mInFlight.iterator(); it.hasNext(); ) {
+            Request request = it.next();
+
+            if (request.deadline <= now) {
+                it.remove();
+                return request;
+            }
+        }
+
+        return null;
+    }
+
+    // Removes and returns any outstanding request, used to fail them all on disconnect
+    Request poll() {
+        Request request = mInFlight.pollFirst();
+        return (request != null) ? request : mQueued.pollFirst();
+    }
+
+    long nextDeadline() {
+        long deadline = Long.MAX_VALUE;
+
+        for (Request request : mInFlight) {
+            deadline = Math.min(deadline, request.deadline);
+        }
+
+        return deadline;
+    }
+
+    int getInFlight() {
+        return mInFlight.size();
+    }
+
+    int getQueued() {
+        return mQueued.size();
+    }
+}
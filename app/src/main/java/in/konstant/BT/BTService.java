@@ -2,33 +2,76 @@ package in.konstant.BT;
 
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothClass;
 import android.bluetooth.BluetoothDevice;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Binder;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
 import android.os.Parcelable;
+import android.os.Process;
+import android.os.SystemClock;
 import android.os.RemoteException;
-import android.util.ArrayMap;
 import android.util.Log;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 public class BTService extends Service {
     // Debug
     private static final String TAG = "BTService";
-    private static final boolean DBG = true;
+    private static final boolean DBG = BTLog.isDebug();
+    private static final int LOG = BTLog.SERVICE;
 
     // Message Handler
-    private final Messenger mIncomingMessenger = new Messenger(new IncomingHandler());
-    private Messenger mOutgoingMessenger = null;
+    private Handler mIncomingHandler;
+    private Messenger mIncomingMessenger;
+
+    // Typed interface for clients binding with ACTION_BIND_INTERFACE
+    private final BinderInterface mBinderInterface = new BinderInterface();
+
+    public static final String ACTION_BIND_INTERFACE = "in.konstant.BT.service.action.BIND_INTERFACE";
+
+    // Clients and the addresses and replies they subscribed to
+    private final BTClientRegistry mClients = new BTClientRegistry();
+
+    // Commands and device events are handled here instead of on the main looper
+    private HandlerThread mIOThread;
+    private Handler mDeviceHandler;
+
+    // Connect and socket I/O pools shared by all devices
+    private BTIOEngine mIOEngine;
+
+    // RFCOMM channels and UUIDs resolved per address, outlives the BTDevices
+    private final BTChannelCache mChannelCache = new BTChannelCache();
+
+    // Virtual devices for load tests, connected instead of real ones while set. Only accessed from mIOThread.
+    private BTSimulator mSimulator;
+
+    // Devices seen during discovery, so device lists don't need a fresh inquiry every time
+    private BTDiscoveryCache mDiscoveryCache;
+
+    // Gets DEVICE_FOUND and DISCOVERY_FINISHED of the background refresh it asked for
+    private volatile Messenger mDiscoveryClient = null;
 
     // Messages
     public static final class Command {
@@ -41,6 +84,25 @@ public class BTService extends Service {
         public static final int DONT_LISTEN = 1006;
         public static final int GET_DEVICES = 1007;
         public static final int SEND = 1008;
+        public static final int CONFIGURE_ENGINE = 1009;
+        public static final int GET_ENGINE_STATS = 1010;
+        public static final int SET_LOG_LEVEL = 1011;
+        public static final int START_STREAMING = 1012;
+        public static final int STOP_STREAMING = 1013;
+        public static final int CONFIGURE_REQUESTS = 1014;
+        public static final int REQUEST = 1015;
+        public static final int CONNECT_BATCH = 1016;
+        public static final int GET_DISCOVERED = 1017;
+        public static final int BOND = 1018;
+        public static final int UNBOND = 1019;
+        public static final int GET_STATS = 1020;
+        public static final int SIMULATE = 1021;
+        public static final int ACK = 1022;
+        public static final int CONFIGURE_RECEIVE = 1023;
+        public static final int REGISTER = 1024;
+        public static final int UNREGISTER = 1025;
+        public static final int OPEN_PIPE = 1026;
+        public static final int CLOSE_PIPE = 1027;
     }
 
     public static final class Reply {
@@ -54,12 +116,130 @@ public class BTService extends Service {
         public static final int DEVICES = 2007;
         public static final int SENT = 2008;
         public static final int RECEIVED = 2009;
+        public static final int ENGINE_STATS = 2010;
+        public static final int STREAMING = 2011;
+        public static final int NOT_STREAMING = 2012;
+        public static final int DATA_AVAILABLE = 2013;
+        public static final int RESPONSE = 2014;
+        public static final int REQUEST_TIMEOUT = 2015;
+        public static final int REQUEST_FAILED = 2016;
+        public static final int BATCH_CONNECTED = 2017;
+        public static final int DISCOVERED = 2018;
+        public static final int DEVICE_FOUND = 2019;
+        public static final int DISCOVERY_FINISHED = 2020;
+        public static final int BOND_PROGRESS = 2021;
+        public static final int BOND_FINISHED = 2022;
+        public static final int STATS = 2023;
+        public static final int SIMULATING = 2024;
+        public static final int SIMULATOR_STATS = 2025;
+        public static final int PIPE_OPENED = 2026;
+        public static final int PIPE_CLOSED = 2027;
+        public static final int COMMAND_FAILED = 2028;
+    }
+
+    // Framing of received data, see EXTRA_FRAMING
+    public static final class Framing {
+        public static final int NONE = 0;
+        public static final int DELIMITER = 1;
+        public static final int LENGTH_PREFIXED = 2;
+        public static final int FIXED = 3;
+    }
+
+    // What a device does when received data piles up, see EXTRA_OVERFLOW
+    public static final class Overflow {
+        public static final int BLOCK = BTReceiveQueue.BLOCK;
+        public static final int DROP_OLDEST = BTReceiveQueue.DROP_OLDEST;
+        public static final int DROP_NEWEST = BTReceiveQueue.DROP_NEWEST;
     }
 
     public static final String EXTRA_MESSENGER = "in.konstant.BT.service.extra.MESSENGER";
     public static final String EXTRA_ADDRESS = "in.konstant.BT.service.extra.ADDRESS";
     public static final String EXTRA_ADDRESSES = "in.konstant.BT.service.extra.ADDRESSES";
     public static final String EXTRA_DATA = "in.konstant.BT.service.extra.DATA";
+    public static final String EXTRA_DATA_OFFSET = "in.konstant.BT.service.extra.DATA_OFFSET";
+    public static final String EXTRA_TEXT = "in.konstant.BT.service.extra.TEXT";
+    public static final String EXTRA_CHARSET = "in.konstant.BT.service.extra.CHARSET";
+    public static final String EXTRA_BUFFER_SIZE = "in.konstant.BT.service.extra.BUFFER_SIZE";
+    public static final String EXTRA_QUEUE_SIZE = "in.konstant.BT.service.extra.QUEUE_SIZE";
+    public static final String EXTRA_COALESCE_DELAY = "in.konstant.BT.service.extra.COALESCE_DELAY";
+    public static final String EXTRA_LENGTH = "in.konstant.BT.service.extra.LENGTH";
+    public static final String EXTRA_QUEUE_DEPTH = "in.konstant.BT.service.extra.QUEUE_DEPTH";
+    public static final String EXTRA_DROPPED = "in.konstant.BT.service.extra.DROPPED";
+    public static final String EXTRA_CONNECT_THREADS = "in.konstant.BT.service.extra.CONNECT_THREADS";
+    public static final String EXTRA_CONNECT_ACTIVE = "in.konstant.BT.service.extra.CONNECT_ACTIVE";
+    public static final String EXTRA_CONNECT_QUEUED = "in.konstant.BT.service.extra.CONNECT_QUEUED";
+    public static final String EXTRA_CONNECT_UTILIZATION = "in.konstant.BT.service.extra.CONNECT_UTILIZATION";
+    public static final String EXTRA_IO_THREADS = "in.konstant.BT.service.extra.IO_THREADS";
+    public static final String EXTRA_IO_ACTIVE = "in.konstant.BT.service.extra.IO_ACTIVE";
+    public static final String EXTRA_IO_QUEUED = "in.konstant.BT.service.extra.IO_QUEUED";
+    public static final String EXTRA_IO_UTILIZATION = "in.konstant.BT.service.extra.IO_UTILIZATION";
+    public static final String EXTRA_WRITE_THREADS = "in.konstant.BT.service.extra.WRITE_THREADS";
+    public static final String EXTRA_WRITE_ACTIVE = "in.konstant.BT.service.extra.WRITE_ACTIVE";
+    public static final String EXTRA_WRITE_QUEUED = "in.konstant.BT.service.extra.WRITE_QUEUED";
+    public static final String EXTRA_WRITE_UTILIZATION = "in.konstant.BT.service.extra.WRITE_UTILIZATION";
+    public static final String EXTRA_BLOCKING_READS = "in.konstant.BT.service.extra.BLOCKING_READS";
+    public static final String EXTRA_POLL_INTERVAL = "in.konstant.BT.service.extra.POLL_INTERVAL";
+    public static final String EXTRA_LOG_SUBSYSTEM = "in.konstant.BT.service.extra.LOG_SUBSYSTEM";
+    public static final String EXTRA_LOG_LEVEL = "in.konstant.BT.service.extra.LOG_LEVEL";
+    public static final String EXTRA_FRAMING = "in.konstant.BT.service.extra.FRAMING";
+    public static final String EXTRA_FRAME_DELIMITER = "in.konstant.BT.service.extra.FRAME_DELIMITER";
+    public static final String EXTRA_FRAME_STRIP = "in.konstant.BT.service.extra.FRAME_STRIP";
+    public static final String EXTRA_FRAME_HEADER_SIZE = "in.konstant.BT.service.extra.FRAME_HEADER_SIZE";
+    public static final String EXTRA_FRAME_BIG_ENDIAN = "in.konstant.BT.service.extra.FRAME_BIG_ENDIAN";
+    public static final String EXTRA_FRAME_SIZE = "in.konstant.BT.service.extra.FRAME_SIZE";
+    public static final String EXTRA_WINDOW = "in.konstant.BT.service.extra.WINDOW";
+    public static final String EXTRA_ID_OFFSET = "in.konstant.BT.service.extra.ID_OFFSET";
+    public static final String EXTRA_TIMEOUT = "in.konstant.BT.service.extra.TIMEOUT";
+    public static final String EXTRA_TAG = "in.konstant.BT.service.extra.TAG";
+    public static final String EXTRA_REQUEST_ID = "in.konstant.BT.service.extra.REQUEST_ID";
+    public static final String EXTRA_LATENCY = "in.konstant.BT.service.extra.LATENCY";
+    public static final String EXTRA_RECONNECT = "in.konstant.BT.service.extra.RECONNECT";
+    public static final String EXTRA_RECONNECT_BASE = "in.konstant.BT.service.extra.RECONNECT_BASE";
+    public static final String EXTRA_RECONNECT_MAX = "in.konstant.BT.service.extra.RECONNECT_MAX";
+    public static final String EXTRA_RECONNECT_ATTEMPTS = "in.konstant.BT.service.extra.RECONNECT_ATTEMPTS";
+    public static final String EXTRA_CONNECT_TIMEOUT = "in.konstant.BT.service.extra.CONNECT_TIMEOUT";
+    public static final String EXTRA_PRIORITIES = "in.konstant.BT.service.extra.PRIORITIES";
+    public static final String EXTRA_PARALLEL = "in.konstant.BT.service.extra.PARALLEL";
+    public static final String EXTRA_RESULTS = "in.konstant.BT.service.extra.RESULTS";
+    public static final String EXTRA_TIMES = "in.konstant.BT.service.extra.TIMES";
+    public static final String EXTRA_CAPACITY = "in.konstant.BT.service.extra.CAPACITY";
+    public static final String EXTRA_COMMAND = "in.konstant.BT.service.extra.COMMAND";
+    public static final String EXTRA_FD = "in.konstant.BT.service.extra.FD";
+    public static final String EXTRA_FD_WRITE = "in.konstant.BT.service.extra.FD_WRITE";
+    public static final String EXTRA_OFFSET = "in.konstant.BT.service.extra.OFFSET";
+    public static final String EXTRA_NAME = "in.konstant.BT.service.extra.NAME";
+    public static final String EXTRA_NAMES = "in.konstant.BT.service.extra.NAMES";
+    public static final String EXTRA_CLASS = "in.konstant.BT.service.extra.CLASS";
+    public static final String EXTRA_CLASSES = "in.konstant.BT.service.extra.CLASSES";
+    public static final String EXTRA_RSSI = "in.konstant.BT.service.extra.RSSI";
+    public static final String EXTRA_LAST_SEEN = "in.konstant.BT.service.extra.LAST_SEEN";
+    public static final String EXTRA_TTL = "in.konstant.BT.service.extra.TTL";
+    public static final String EXTRA_REFRESH = "in.konstant.BT.service.extra.REFRESH";
+    public static final String EXTRA_REFRESHING = "in.konstant.BT.service.extra.REFRESHING";
+    public static final String EXTRA_RESULT = "in.konstant.BT.service.extra.RESULT";
+    public static final String EXTRA_TIME = "in.konstant.BT.service.extra.TIME";
+    public static final String EXTRA_INDEX = "in.konstant.BT.service.extra.INDEX";
+    public static final String EXTRA_COUNT = "in.konstant.BT.service.extra.COUNT";
+    public static final String EXTRA_COUNTERS = "in.konstant.BT.service.extra.COUNTERS";
+    public static final String EXTRA_CHUNK_SIZES = "in.konstant.BT.service.extra.CHUNK_SIZES";
+    public static final String EXTRA_QUEUE_DELAYS = "in.konstant.BT.service.extra.QUEUE_DELAYS";
+    public static final String EXTRA_WRITE_LATENCIES = "in.konstant.BT.service.extra.WRITE_LATENCIES";
+    public static final String EXTRA_RATE = "in.konstant.BT.service.extra.RATE";
+    public static final String EXTRA_BURST = "in.konstant.BT.service.extra.BURST";
+    public static final String EXTRA_DISCONNECT_INTERVAL = "in.konstant.BT.service.extra.DISCONNECT_INTERVAL";
+    public static final String EXTRA_ECHO = "in.konstant.BT.service.extra.ECHO";
+    public static final String EXTRA_GENERATED = "in.konstant.BT.service.extra.GENERATED";
+    public static final String EXTRA_OVERFLOWS = "in.konstant.BT.service.extra.OVERFLOWS";
+    public static final String EXTRA_ECHOED = "in.konstant.BT.service.extra.ECHOED";
+    public static final String EXTRA_DISCONNECTS = "in.konstant.BT.service.extra.DISCONNECTS";
+    public static final String EXTRA_RECEIVE_WINDOW = "in.konstant.BT.service.extra.RECEIVE_WINDOW";
+    public static final String EXTRA_OVERFLOW = "in.konstant.BT.service.extra.OVERFLOW";
+    public static final String EXTRA_ACK_WINDOW = "in.konstant.BT.service.extra.ACK_WINDOW";
+    public static final String EXTRA_RECEIVE_QUEUED = "in.konstant.BT.service.extra.RECEIVE_QUEUED";
+    public static final String EXTRA_RECEIVE_COALESCE_SIZE = "in.konstant.BT.service.extra.RECEIVE_COALESCE_SIZE";
+    public static final String EXTRA_RECEIVE_COALESCE_DELAY = "in.konstant.BT.service.extra.RECEIVE_COALESCE_DELAY";
+    public static final String EXTRA_LENGTHS = "in.konstant.BT.service.extra.LENGTHS";
+    public static final String EXTRA_EVENTS = "in.konstant.BT.service.extra.EVENTS";
 
     private Context mContext;
     private BTBroadcastReceiver mBTBroadcastReceiver;
@@ -67,18 +247,63 @@ public class BTService extends Service {
     // Bluetooth
     private BluetoothAdapter mBluetoothAdapter;
     private boolean mBTAvailable = false;
-    private boolean mBTEnabled = false;
+    private volatile boolean mBTEnabled = false;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static final int DEFAULT_REQUEST_TIMEOUT = 1000;
+
+    // How long a synchronous IBTService query waits for the service thread (ms)
+    private static final int QUERY_TIMEOUT = 1000;
 
-    private HashMap<String, BTDevice> mConnectedDevices;
+    // Service internal messages on mDeviceHandler, apart from BTDevice.Notification
+    private static final int MSG_REQUEST_TIMEOUT = 100;
+    private static final int MSG_BOND_STATE = 101;
+    private static final int MSG_BOND_TIMEOUT = 102;
+
+    // Connected and connecting devices. Only changed on mIOThread, looked up from any thread.
+    private final BTDeviceRegistry mDevices = new BTDeviceRegistry();
+
+    // Devices in streaming mode write received data into a ring shared with the client,
+    // which only gets DATA_AVAILABLE notifications. Only accessed from mIOThread.
+    private HashMap<String, BTSharedRing> mStreams;
+
+    // Devices whose data goes through a pipe pair with the client instead of replies. Only
+    // accessed from mIOThread, a pipe closed by the client stays until it is replaced.
+    private HashMap<String, BTPipe> mPipes;
+
+    // Running batch connects with the CONNECT extras they were started with. Only accessed from mIOThread.
+    private HashMap<BTConnectBatch, Bundle> mConnectBatches;
+
+    // Outstanding requests of devices used with Command.REQUEST. Only accessed from mIOThread.
+    private HashMap<String, BTRequestTracker> mRequestTrackers;
+
+    // Bond batches in the order they were requested, with the client to report to. Only the
+    // first one runs, the adapter bonds with one device at a time. Only accessed from mIOThread.
+    private LinkedHashMap<BTBondBatch, Messenger> mBondBatches;
+
+    // Reused for every chunk taken from a receive queue. Only accessed from mIOThread.
+    private final BTReceiveQueue.Chunk mChunk = new BTReceiveQueue.Chunk();
+
+    // Chunks of a coalescing device merged into one RECEIVED. Only accessed from mIOThread.
+    private final ByteArrayOutputStream mReceiveBatch = new ByteArrayOutputStream();
+    private int[] mReceiveBatchLengths = new int[64];
+    private int mReceiveBatchCount = 0;
 
     // Lifecycle ----------------------------------------------------------------------------
 
     @Override
     public void onCreate() {
-        if (DBG) Log.d(TAG, "onCreate()");
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "onCreate()");
         mContext = this;
 
-        mConnectedDevices = new HashMap<String, BTDevice>();
+        mStreams = new HashMap<String, BTSharedRing>();
+        mPipes = new HashMap<String, BTPipe>();
+        mRequestTrackers = new HashMap<String, BTRequestTracker>();
+        mConnectBatches = new HashMap<BTConnectBatch, Bundle>();
+        mBondBatches = new LinkedHashMap<BTBondBatch, Messenger>();
+
+        mDiscoveryCache = new BTDiscoveryCache(mContext);
 
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
 
@@ -87,17 +312,35 @@ public class BTService extends Service {
             mBTEnabled = mBluetoothAdapter.isEnabled();
         }
 
+        mIOEngine = new BTIOEngine();
+
+        mIOThread = new HandlerThread("BTServiceIO", Process.THREAD_PRIORITY_MORE_FAVORABLE);
+        mIOThread.start();
+
+        Looper looper = mIOThread.getLooper();
+        mIncomingHandler = new IncomingHandler(looper);
+        mIncomingMessenger = new Messenger(mIncomingHandler);
+        mDeviceHandler = new DeviceHandler(looper);
+
         mBTBroadcastReceiver = new BTBroadcastReceiver(mContext);
     }
 
     @Override
     public IBinder onBind(Intent intent) {
-        if (DBG) Log.d(TAG, "onBind(" + intent + ")");
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "onBind(" + intent + ")");
 
-        mOutgoingMessenger = (Messenger) intent.getParcelableExtra(EXTRA_MESSENGER);
+        if (ACTION_BIND_INTERFACE.equals(intent.getAction())) {
+            return mBinderInterface;
+        }
+
+        Messenger messenger = (Messenger) intent.getParcelableExtra(EXTRA_MESSENGER);
 
-        if (mOutgoingMessenger == null) {
-            if (DBG) Log.e(TAG, "Reply Handler missing");
+        // Components that only send commands with replyTo (e.g. BTDeviceList) bind without one.
+        // The system calls onBind() only once per Intent, further clients use Command.REGISTER.
+        if (messenger != null) {
+            mClients.register(messenger, null, null);
+        } else {
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "Bound without Reply Handler");
         }
 
         return mIncomingMessenger.getBinder();
@@ -105,52 +348,265 @@ public class BTService extends Service {
 
     @Override
     public void onDestroy() {
-        if (DBG) Log.d(TAG, "onDestroy()");
-
-        for (ArrayMap.Entry<String, BTDevice> entry : mConnectedDevices.entrySet()) {
-            entry.getValue().destroy();
-        }
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "onDestroy()");
 
-        mConnectedDevices.clear();
         mBTBroadcastReceiver.close();
 
+        // Tear down the devices on the thread that owns them, then stop it
+        mDeviceHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (BTDevice device : mDevices.devices()) {
+                    device.destroy();
+                }
+
+                mDevices.clear();
+
+                for (String address : new ArrayList<String>(mStreams.keySet())) {
+                    stopStreaming(address);
+                }
+
+                for (BTPipe pipe : mPipes.values()) {
+                    pipe.close();
+                }
+
+                mPipes.clear();
+
+                if (mSimulator != null) {
+                    mSimulator.shutdown();
+                }
+
+                mIOEngine.shutdown();
+                mIOThread.quit();
+            }
+        });
+
         super.onDestroy();
     }
 
     // Messaging to Activity -----------------------------------------------------------------------
 
+    // To every client subscribed to the reply and the device it is about (EXTRA_ADDRESS)
     private void sendReply(int reply, Bundle data) {
-        if (DBG) Log.d(TAG, "sendReply(" + reply + ")");
+        if (DBG && BTLog.verbose(LOG)) Log.v(TAG, "sendReply(" + reply + ")");
+
+        int sent = mClients.dispatch(reply, data, (data != null) ? data.getString(EXTRA_ADDRESS) : null);
+
+        if (sent == 0) {
+            if (DBG && BTLog.verbose(LOG)) Log.v(TAG, "No client for reply " + reply);
+        }
+    }
+
+    // Rejected command, to the client that sent it
+    private void commandFailed(Message msg, String address) {
+        Bundle data = new Bundle();
+        data.putInt(EXTRA_COMMAND, msg.what);
+        data.putString(EXTRA_ADDRESS, address);
+
+        sendReply(msg.replyTo, Reply.COMMAND_FAILED, data);
+    }
+
+    // To the client that asked, e.g. with replyTo, or to all subscribers if there is none.
+    // Returns false if the client no longer exists.
+    private boolean sendReply(Messenger messenger, int reply, Bundle data) {
+        if (messenger == null) {
+            sendReply(reply, data);
+            return true;
+        }
+
+        if (DBG && BTLog.verbose(LOG)) Log.v(TAG, "sendReply(" + reply + ")");
 
         Message msg = Message.obtain(null, reply);
         msg.setData(data);
 
-        if (mOutgoingMessenger == null) {
-            if (DBG) Log.e(TAG, "Reply Handler missing");
-        } else {
-            try {
-                mOutgoingMessenger.send(msg);
-            } catch (RemoteException e) {
-                if (DBG) Log.e(TAG, "Reply Handler no longer exists");
+        try {
+            messenger.send(msg);
+            return true;
+        } catch (RemoteException e) {
+            if (BTLog.error(LOG)) Log.e(TAG, "Reply Handler no longer exists");
+            return false;
+        }
+    }
+
+    // Binder Interface ----------------------------------------------------------------------------
+
+    // Called on binder threads. Commands are posted to the service thread like Messenger
+    // commands, so both APIs can be mixed and keep their order; queries wait for its answer.
+    private final class BinderInterface extends IBTService.Stub {
+        @Override
+        public boolean isEnabled() {
+            return mBTAvailable && mBTEnabled;
+        }
+
+        // Straight from the registry, without waiting for the service thread
+        @Override
+        public String[] getDevices() {
+            return BTService.this.getDevices();
+        }
+
+        @Override
+        public BTDeviceInfo getDeviceInfo(String address) {
+            address = BTDeviceRegistry.normalize(address);
+            BTDevice device = mDevices.get(address);
+            return (device != null) ? BTService.this.getDeviceInfo(address, device) : null;
+        }
+
+        // Read and write end for the client. Returned ends are closed in the service once they
+        // have been written to the reply.
+        @Override
+        public ParcelFileDescriptor[] openPipe(String client) {
+            final String address = BTDeviceRegistry.normalize(client);
+
+            if (address == null) return null;
+
+            // Only touched on the service thread
+            final BTPipe[] opened = new BTPipe[1];
+
+            ParcelFileDescriptor[] fds = callOnServiceThread(new Callable<ParcelFileDescriptor[]>() {
+                @Override
+                public ParcelFileDescriptor[] call() {
+                    BTPipe pipe = BTService.this.openPipe(address);
+
+                    if (pipe == null) return null;
+
+                    opened[0] = pipe;
+                    return new ParcelFileDescriptor[] { pipe.getClientReadFd(), pipe.getClientWriteFd() };
+                }
+            });
+
+            if (fds == null) {
+                // The query may still have opened the pipe after the wait gave up. Runs after
+                // it on the service thread, nobody would ever read from that pipe.
+                mIncomingHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        BTPipe pipe = opened[0];
+
+                        if (pipe == null) return;
+
+                        if (mPipes.get(address) == pipe) {
+                            closePipe(address);
+                        }
+
+                        pipe.releaseClientFds();
+                    }
+                });
+            }
+
+            return fds;
+        }
+
+        @Override
+        public void connect(String address, Bundle options) {
+            Bundle data = (options != null) ? new Bundle(options) : new Bundle();
+            data.putString(EXTRA_ADDRESS, address);
+
+            command(Command.CONNECT, data);
+        }
+
+        @Override
+        public void disconnect(String address) {
+            Bundle data = new Bundle();
+            data.putString(EXTRA_ADDRESS, address);
+
+            command(Command.DISCONNECT, data);
+        }
+
+        // Straight to the device, without a Bundle
+        @Override
+        public void send(final String address, final byte[] data) {
+            if (data == null) return;
+
+            mIncomingHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    BTDevice device = mDevices.get(address);
+
+                    if (device != null) {
+                        device.send(data);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void ack(String address, int length) {
+            Bundle data = new Bundle();
+            data.putString(EXTRA_ADDRESS, address);
+            data.putInt(EXTRA_LENGTH, length);
+
+            command(Command.ACK, data);
+        }
+
+        @Override
+        public void registerCallback(IBTServiceCallback callback, String[] addresses, int[] events) {
+            if (callback != null) {
+                mClients.registerCallback(callback, normalizeAddresses(addresses), events);
+            }
+        }
+
+        @Override
+        public void unregisterCallback(IBTServiceCallback callback) {
+            if (callback != null) {
+                mClients.unregisterCallback(callback);
             }
         }
+
+        @Override
+        public void closePipe(String address) {
+            Bundle data = new Bundle();
+            data.putString(EXTRA_ADDRESS, address);
+
+            command(Command.CLOSE_PIPE, data);
+        }
+
+        private void command(int command, Bundle data) {
+            Message msg = mIncomingHandler.obtainMessage(command);
+            msg.setData(data);
+            msg.sendToTarget();
+        }
+    }
+
+    // Runs a query on the service thread, which owns the devices, and waits for the result.
+    // Returns null if it doesn't get to it within QUERY_TIMEOUT.
+    private <T> T callOnServiceThread(Callable<T> query) {
+        FutureTask<T> task = new FutureTask<T>(query);
+
+        if (Looper.myLooper() == mIOThread.getLooper()) {
+            task.run();
+        } else {
+            mIncomingHandler.post(task);
+        }
+
+        try {
+            return task.get(QUERY_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            if (BTLog.error(LOG)) Log.e(TAG, "Query failed", e);
+            task.cancel(false);
+            return null;
+        }
     }
 
     private class IncomingHandler extends Handler {
         // Debug
         private static final String TAG = "BTServiceIncomingHandler";
-        private static final boolean DBG = true;
+
+        IncomingHandler(Looper looper) {
+            super(looper);
+        }
 
         public void handleMessage(Message msg) {
-            if (DBG) Log.d(TAG, "handleMessage(" + msg + ")");
+            if (DBG && BTLog.verbose(LOG)) Log.v(TAG, "handleMessage(" + msg + ")");
 
             Bundle replydata = new Bundle();
             Bundle data = msg.getData();
 
+            normalizeAddresses(data);
+
             switch (msg.what) {
                 case Command.ENABLE:
                     if (mBTAvailable && !mBTEnabled) {
-                        if (DBG) Log.d(TAG, "Enable Bluetooth");
+                        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "Enable Bluetooth");
                         Intent enableIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
                         enableIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
                         mContext.startActivity(enableIntent);
@@ -159,7 +615,7 @@ public class BTService extends Service {
 
                 case Command.DISABLE:
                     if (mBTAvailable && mBTEnabled) {
-                        if (DBG) Log.d(TAG, "Disable Bluetooth");
+                        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "Disable Bluetooth");
                         mBluetoothAdapter.disable();
                     }
                     break;
@@ -175,28 +631,84 @@ public class BTService extends Service {
                 case Command.CONNECT:
                     String connectTo = data.getString(EXTRA_ADDRESS);
 
-                    // Device address not already connected
-                    if (!mConnectedDevices.containsKey(connectTo)) {
-                        if (DBG) Log.d(TAG, "Connect to " + connectTo);
-                        BTDevice device = new BTDevice(mContext, mDeviceHandler, connectTo);
-                        mConnectedDevices.put(connectTo, device);
-                    }
+                    connectDevice(connectTo, data, true);
                     // Remove device from list when it answers if connection was not successful
                     break;
 
+                case Command.CONNECT_BATCH:
+                    String[] batchAddresses = data.getStringArray(EXTRA_ADDRESSES);
+
+                    if (batchAddresses == null || batchAddresses.length == 0) break;
+
+                    int[] priorities = data.getIntArray(EXTRA_PRIORITIES);
+                    int parallel = data.getInt(EXTRA_PARALLEL, BTConnectBatch.DEFAULT_PARALLEL);
+
+                    // Finished right away with every address failed
+                    if (parallel <= 0 || (priorities != null && priorities.length != batchAddresses.length)) {
+                        if (BTLog.error(LOG)) Log.e(TAG, "CONNECT_BATCH invalid parallel limit " + parallel + " or priorities");
+
+                        int[] failed = new int[batchAddresses.length];
+                        Arrays.fill(failed, BTConnectBatch.RESULT_FAILED);
+
+                        replydata.putStringArray(EXTRA_ADDRESSES, batchAddresses);
+                        replydata.putIntArray(EXTRA_RESULTS, failed);
+                        replydata.putLongArray(EXTRA_TIMES, new long[batchAddresses.length]);
+
+                        sendReply(Reply.BATCH_CONNECTED, replydata);
+                        break;
+                    }
+
+                    BTConnectBatch batch = new BTConnectBatch(batchAddresses, priorities, parallel);
+
+                    // Once for the whole batch instead of once per device
+                    if (mBTAvailable) {
+                        mBluetoothAdapter.cancelDiscovery();
+                    }
+
+                    mConnectBatches.put(batch, data);
+                    startBatch(batch, data);
+                    break;
+
+                case Command.BOND:
+                case Command.UNBOND:
+                    String[] bondAddresses = data.getStringArray(EXTRA_ADDRESSES);
+
+                    if (bondAddresses == null && data.containsKey(EXTRA_ADDRESS)) {
+                        bondAddresses = new String[] { data.getString(EXTRA_ADDRESS) };
+                    }
+
+                    if (!mBTAvailable || bondAddresses == null || bondAddresses.length == 0) break;
+
+                    if (!inRange(data, EXTRA_TIMEOUT, 1, Integer.MAX_VALUE)) {
+                        commandFailed(msg, null);
+                        break;
+                    }
+
+                    BTBondBatch bondBatch = new BTBondBatch(bondAddresses, msg.what == Command.UNBOND,
+                            data.getInt(EXTRA_TIMEOUT, BTBondBatch.DEFAULT_TIMEOUT));
+
+                    mBondBatches.put(bondBatch, msg.replyTo);
+
+                    if (mBondBatches.size() == 1) {
+                        runBondBatch(bondBatch);
+                    }
+                    break;
+
                 case Command.DISCONNECT:
                     String disconnectFrom = data.getString(EXTRA_ADDRESS);
 
+                    BTDevice disconnectDevice = mDevices.get(disconnectFrom);
+
                     // Device address is connected
-                    if (mConnectedDevices.containsKey(disconnectFrom)) {
-                        if (DBG) Log.d(TAG, "Disconnect from " + disconnectFrom);
-                        mConnectedDevices.get(disconnectFrom).disconnect();
+                    if (disconnectDevice != null) {
+                        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "Disconnect from " + disconnectFrom);
+                        disconnectDevice.disconnect();
                     }
                     // Remove device from list when it answers if disconnection was successful
                     break;
 
                 case Command.GET_DEVICES:
-                    if (DBG) Log.d(TAG, "Get connected devices");
+                    if (DBG && BTLog.debug(LOG)) Log.d(TAG, "Get connected devices");
 
                     String[] devices = getDevices();
 
@@ -207,178 +719,1341 @@ public class BTService extends Service {
 
                 case Command.SEND:
                     String sendTo = data.getString(EXTRA_ADDRESS);
-                    String text = data.getString(EXTRA_DATA);
+                    byte[] payload = getPayload(data);
 
-                    if (DBG) Log.d(TAG, "Send '" + text + "' to " + sendTo);
+                    if (DBG && BTLog.verbose(LOG)) Log.v(TAG, "Send " + ((payload != null) ? payload.length : 0) + " bytes to " + sendTo);
 
-                    mConnectedDevices.get(sendTo).send(text.getBytes());
+                    BTDevice sendDevice = mDevices.get(sendTo);
 
-                default:
-                    super.handleMessage(msg);
-            }
-        }
-    }
+                    // Only queues the data, the socket write happens on the I/O engine
+                    if (sendDevice != null && payload != null) {
+                        sendDevice.send(payload);
+                    }
+                    break;
 
-    // Bluetooth Handling --------------------------------------------------------------------------
+                case Command.ACK:
+                    // The client processed EXTRA_LENGTH bytes, deliver what was held back for it
+                    String ackFrom = data.getString(EXTRA_ADDRESS);
+                    BTDevice ackDevice = mDevices.get(ackFrom);
 
-    private final class BTBroadcastReceiver extends BroadcastReceiver {
-        private static final String TAG = "BTBroadcastReceiver";
-        private static final boolean DBG = true;
+                    if (ackDevice != null) {
+                        ackDevice.ackReceived(data.getInt(EXTRA_LENGTH));
+                        deliverReceived(ackFrom, ackDevice);
+                    }
+                    break;
 
-        private Context mmContext;
+                case Command.REGISTER:
+                    // Subscriptions of the replyTo client, all addresses or replies if not given
+                    if (msg.replyTo != null) {
+                        mClients.register(msg.replyTo, data.getStringArray(EXTRA_ADDRESSES),
+                                          data.getIntArray(EXTRA_EVENTS));
+                    } else {
+                        if (BTLog.error(LOG)) Log.e(TAG, "REGISTER without replyTo");
+                    }
+                    break;
 
-        private boolean mmRegistered = false;
+                case Command.UNREGISTER:
+                    if (msg.replyTo != null) {
+                        mClients.unregister(msg.replyTo);
 
-        BTBroadcastReceiver(Context context)
-        {
-            if (!mmRegistered) {
-                if (DBG) Log.d(TAG, "BTBroadcastReceiver()");
+                        if (msg.replyTo.equals(mDiscoveryClient)) {
+                            mDiscoveryClient = null;
+                        }
+                    }
+                    break;
 
-                mmContext = context;
+                case Command.CONFIGURE_RECEIVE:
+                    BTDevice configureDevice = mDevices.get(data.getString(EXTRA_ADDRESS));
 
-                IntentFilter intentFilter = new IntentFilter();
-                intentFilter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
-                intentFilter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
-                intentFilter.addAction(BluetoothDevice.ACTION_PAIRING_REQUEST);
-                intentFilter.addAction(BluetoothDevice.ACTION_UUID);
-                intentFilter.addAction(BluetoothDevice.ACTION_NAME_CHANGED);
-                mmContext.registerReceiver(this, intentFilter);
-            }
-        }
+                    if (!inRange(data, EXTRA_RECEIVE_COALESCE_SIZE, 0, Integer.MAX_VALUE) ||
+                        !inRange(data, EXTRA_RECEIVE_COALESCE_DELAY, 0, Integer.MAX_VALUE)) {
+                        commandFailed(msg, data.getString(EXTRA_ADDRESS));
+                        break;
+                    }
 
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            if (DBG) Log.d(TAG, "onReceive(" + intent + ")");
-            String action = intent.getAction();
+                    if (configureDevice != null) {
+                        configureDevice.setReceiveCoalescing(data.getInt(EXTRA_RECEIVE_COALESCE_SIZE, 0),
+                                                             data.getInt(EXTRA_RECEIVE_COALESCE_DELAY, 0));
+                    }
+                    break;
 
-            if (action.equals(BluetoothAdapter.ACTION_STATE_CHANGED)) {
-                processStateChange(intent);
-            } else if (action.equals(BluetoothDevice.ACTION_BOND_STATE_CHANGED)) {
-                processBondStateChange(intent);
-            } else if (action.equals(BluetoothDevice.ACTION_PAIRING_REQUEST)) {
-                processPairingRequest(intent);
-            } else if (action.equals(BluetoothDevice.ACTION_NAME_CHANGED)) {
-                processNameChanged(intent);
-            } else if (action.equals(BluetoothDevice.ACTION_UUID)) {
-                processUUID(intent);
-            }
-        }
+                case Command.GET_STATS:
+                    // One reply per device, all connected devices without an address
+                    String statsFor = data.getString(EXTRA_ADDRESS);
 
-        void close() {
-            if (DBG) Log.d(TAG, "close()");
-            try {
-                mmContext.unregisterReceiver(this);
-            } catch (Exception e) {
-            } finally {
-                mmRegistered = false;
-            }
-        }
+                    for (String statsAddress : (statsFor != null) ? new String[] { statsFor } : getDevices()) {
+                        BTDevice statsDevice = mDevices.get(statsAddress);
 
-        private void processStateChange(Intent intent) {
-            int previousState = intent.getIntExtra(BluetoothAdapter.EXTRA_PREVIOUS_STATE, -1);
-            int currentState = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, -1);
+                        if (statsDevice != null) {
+                            sendReply(Reply.STATS, getStats(statsAddress, statsDevice));
+                        }
+                    }
 
-            if (DBG) Log.d(TAG, "processStateChange(" + previousState + " -> " + currentState + ")");
+                    // The other end of the data path, to tell dropped data apart
+                    if (mSimulator != null) {
+                        replydata.putStringArray(EXTRA_ADDRESSES, mSimulator.getAddresses());
+                        replydata.putLongArray(EXTRA_GENERATED, mSimulator.getGenerated());
+                        replydata.putLongArray(EXTRA_OVERFLOWS, mSimulator.getOverflows());
+                        replydata.putLongArray(EXTRA_ECHOED, mSimulator.getReceived());
+                        replydata.putLongArray(EXTRA_DISCONNECTS, mSimulator.getDisconnects());
 
-            switch (currentState) {
-                case BluetoothAdapter.STATE_ON:
-                    mBTEnabled = true;
-                    sendReply(Reply.ENABLED, null);
-                    break;
-                case BluetoothAdapter.STATE_OFF:
-                    mBTEnabled = false;
-                    sendReply(Reply.DISABLED, null);
+                        sendReply(Reply.SIMULATOR_STATS, replydata);
+                    }
                     break;
-            }
 
-        }
+                case Command.SIMULATE:
+                    int simulated = data.getInt(EXTRA_COUNT, 0);
+
+                    // The running simulation stays as it is if the new one is rejected
+                    if (!inRange(data, EXTRA_COUNT, 0, 0xFFFF) ||
+                        !inRange(data, EXTRA_RATE, 0, Integer.MAX_VALUE) ||
+                        !inRange(data, EXTRA_BURST, 1, Integer.MAX_VALUE) ||
+                        !inRange(data, EXTRA_LATENCY, 0, Integer.MAX_VALUE) ||
+                        !inRange(data, EXTRA_DISCONNECT_INTERVAL, 0, Integer.MAX_VALUE)) {
+                        commandFailed(msg, null);
+                        break;
+                    }
 
-        private void processBondStateChange(Intent intent) {
+                    if (mSimulator != null) {
+                        mSimulator.shutdown();
+                        mSimulator = null;
+                    }
 
-        }
+                    // A count of 0 only stops the simulation
+                    if (simulated > 0) {
+                        mSimulator = new BTSimulator(simulated,
+                                data.getInt(EXTRA_RATE, BTSimulator.DEFAULT_RATE),
+                                data.getInt(EXTRA_BURST, BTSimulator.DEFAULT_BURST),
+                                data.getInt(EXTRA_LATENCY, 0),
+                                data.getInt(EXTRA_DISCONNECT_INTERVAL, 0),
+                                data.getBoolean(EXTRA_ECHO, false));
 
-        private void processPairingRequest(Intent intent) {
+                        replydata.putStringArray(EXTRA_ADDRESSES, mSimulator.getAddresses());
+                    }
 
-        }
+                    sendReply(Reply.SIMULATING, replydata);
+                    break;
 
-        private void processNameChanged(Intent intent) {
+                case Command.CONFIGURE_ENGINE:
+                    // Nothing changes if any value is out of range, the client gets the
+                    // settings still in effect
+                    if ((data.containsKey(EXTRA_CONNECT_THREADS) && data.getInt(EXTRA_CONNECT_THREADS) <= 0) ||
+                        (data.containsKey(EXTRA_IO_THREADS) && data.getInt(EXTRA_IO_THREADS) <= 0) ||
+                        (data.containsKey(EXTRA_WRITE_THREADS) && data.getInt(EXTRA_WRITE_THREADS) <= 0) ||
+                        (data.containsKey(EXTRA_POLL_INTERVAL) && data.getInt(EXTRA_POLL_INTERVAL) <= 0)) {
+                        if (BTLog.error(LOG)) Log.e(TAG, "CONFIGURE_ENGINE invalid thread count or poll interval");
+
+                        putEngineStats(replydata);
+                        sendReply(Reply.ENGINE_STATS, replydata);
+                        break;
+                    }
 
-        }
+                    if (data.containsKey(EXTRA_CONNECT_THREADS)) {
+                        mIOEngine.setConnectThreads(data.getInt(EXTRA_CONNECT_THREADS));
+                    }
 
-        private void processUUID(Intent intent) {
-            if (DBG) Log.d(TAG, "processUUID()");
+                    if (data.containsKey(EXTRA_IO_THREADS)) {
+                        mIOEngine.setIOThreads(data.getInt(EXTRA_IO_THREADS));
+                    }
 
-            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-            Parcelable[] uuids = intent.getParcelableArrayExtra(BluetoothDevice.EXTRA_UUID);
+                    if (data.containsKey(EXTRA_WRITE_THREADS)) {
+                        mIOEngine.setWriteThreads(data.getInt(EXTRA_WRITE_THREADS));
+                    }
 
-            for (Parcelable uuid : uuids) {
-                if (DBG) Log.d(TAG, uuid.toString());
-            }
-        }
-    }
+                    if (data.containsKey(EXTRA_POLL_INTERVAL)) {
+                        mIOEngine.setPollInterval(data.getInt(EXTRA_POLL_INTERVAL));
+                    }
+                    break;
 
-    private final Handler mDeviceHandler = new Handler() {
-        private static final String TAG = "BTDeviceHandler";
+                case Command.GET_ENGINE_STATS:
+                    putEngineStats(replydata);
+                    sendReply(Reply.ENGINE_STATS, replydata);
+                    break;
 
-        @Override
-        public void handleMessage(Message msg) {
-            if (DBG) Log.d(TAG, "handleMessage(" + msg + ")");
+                case Command.START_STREAMING:
+                    String streamFrom = data.getString(EXTRA_ADDRESS);
+                    int capacity = data.getInt(EXTRA_CAPACITY, BTSharedRing.DEFAULT_CAPACITY);
 
-            String address = msg.getData().getString(BTDevice.EXTRA_ADDRESS);
-            Bundle data = new Bundle();
+                    // The descriptor only makes sense for the client that asked
+                    if (msg.replyTo == null) {
+                        if (BTLog.error(LOG)) Log.e(TAG, "START_STREAMING without replyTo");
+                        break;
+                    }
 
-            switch (msg.what) {
-                case BTDevice.Notification.CONNECTED:
+                    replydata.putString(EXTRA_ADDRESS, streamFrom);
+
+                    if (mDevices.get(streamFrom) == null || !startStreaming(streamFrom, capacity, replydata)) {
+                        sendReply(msg.replyTo, Reply.NOT_STREAMING, replydata);
+                        break;
+                    }
+
+                    sendReply(msg.replyTo, Reply.STREAMING, replydata);
+
+                    // A remote client has its own copy now. A local one got our object.
+                    if (!(msg.replyTo.getBinder() instanceof Binder)) {
+                        ParcelFileDescriptor streamFd = replydata.getParcelable(EXTRA_FD);
+
+                        try {
+                            streamFd.close();
+                        } catch (IOException e) {
+                            // Already closed
+                        }
+                    }
+                    break;
+
+                case Command.STOP_STREAMING:
+                    String stopFrom = data.getString(EXTRA_ADDRESS);
+
+                    stopStreaming(stopFrom);
+
+                    replydata.putString(EXTRA_ADDRESS, stopFrom);
+                    sendReply(msg.replyTo, Reply.NOT_STREAMING, replydata);
+                    break;
+
+                case Command.OPEN_PIPE:
+                    String pipeTo = data.getString(EXTRA_ADDRESS);
+
+                    // The descriptors only make sense for the client that asked
+                    if (msg.replyTo == null) {
+                        if (BTLog.error(LOG)) Log.e(TAG, "OPEN_PIPE without replyTo");
+                        break;
+                    }
+
+                    replydata.putString(EXTRA_ADDRESS, pipeTo);
+
+                    BTPipe pipe = openPipe(pipeTo);
+
+                    if (pipe == null) {
+                        sendReply(msg.replyTo, Reply.PIPE_CLOSED, replydata);
+                        break;
+                    }
+
+                    replydata.putParcelable(EXTRA_FD, pipe.getClientReadFd());
+                    replydata.putParcelable(EXTRA_FD_WRITE, pipe.getClientWriteFd());
+                    sendReply(msg.replyTo, Reply.PIPE_OPENED, replydata);
+
+                    // A remote client has its own copies now. A local one got our objects.
+                    if (!(msg.replyTo.getBinder() instanceof Binder)) {
+                        pipe.releaseClientFds();
+                    }
+                    break;
+
+                case Command.CLOSE_PIPE:
+                    String closeTo = data.getString(EXTRA_ADDRESS);
+
+                    closePipe(closeTo);
+
+                    replydata.putString(EXTRA_ADDRESS, closeTo);
+                    sendReply(msg.replyTo, Reply.PIPE_CLOSED, replydata);
+                    break;
+
+                case Command.CONFIGURE_REQUESTS:
+                    String configureFor = data.getString(EXTRA_ADDRESS);
+                    int window = data.getInt(EXTRA_WINDOW, BTRequestTracker.DEFAULT_WINDOW);
+                    int idOffset = data.getInt(EXTRA_ID_OFFSET, BTRequestTracker.FIFO);
+
+                    if (!BTRequestTracker.isValid(window, idOffset)) {
+                        if (BTLog.error(LOG)) Log.e(TAG, "CONFIGURE_REQUESTS invalid window " + window + " or ID offset " + idOffset);
+
+                        replydata.putString(EXTRA_ADDRESS, configureFor);
+                        sendReply(Reply.REQUEST_FAILED, replydata);
+                        break;
+                    }
+
+                    BTRequestTracker tracker = new BTRequestTracker(configureFor, window, idOffset);
+
+                    failRequests(mRequestTrackers.put(configureFor, tracker));
+                    break;
+
+                case Command.REQUEST:
+                    String requestTo = data.getString(EXTRA_ADDRESS);
+                    byte[] request = getPayload(data);
+
+                    if (request == null || mDevices.get(requestTo) == null) {
+                        replydata.putString(EXTRA_ADDRESS, requestTo);
+                        replydata.putInt(EXTRA_TAG, data.getInt(EXTRA_TAG));
+                        sendReply(Reply.REQUEST_FAILED, replydata);
+                        break;
+                    }
+
+                    BTRequestTracker requestTracker = mRequestTrackers.get(requestTo);
+
+                    if (requestTracker == null) {
+                        requestTracker = new BTRequestTracker(requestTo, BTRequestTracker.DEFAULT_WINDOW, BTRequestTracker.FIFO);
+                        mRequestTrackers.put(requestTo, requestTracker);
+                    }
+
+                    // No room for the correlation ID
+                    if (!requestTracker.accepts(request)) {
+                        replydata.putString(EXTRA_ADDRESS, requestTo);
+                        replydata.putInt(EXTRA_TAG, data.getInt(EXTRA_TAG));
+                        sendReply(Reply.REQUEST_FAILED, replydata);
+                        break;
+                    }
+
+                    // Own copy, the tracker may write the correlation ID into it
+                    requestTracker.submit(request.clone(), data.getInt(EXTRA_TAG),
+                                          data.getInt(EXTRA_TIMEOUT, DEFAULT_REQUEST_TIMEOUT));
+
+                    sendRequests(requestTracker);
+                    break;
+
+                case Command.GET_DISCOVERED:
+                    if (data.getLong(EXTRA_TTL) < 0) {
+                        if (BTLog.error(LOG)) Log.e(TAG, "Invalid " + EXTRA_TTL + " " + data.getLong(EXTRA_TTL));
+                        commandFailed(msg, null);
+                        break;
+                    }
+
+                    if (data.containsKey(EXTRA_TTL)) {
+                        mDiscoveryCache.setTtl(data.getLong(EXTRA_TTL));
+                    }
+
+                    // Replies go to the asking component, e.g. a device list that is not the bound client
+                    Messenger client = msg.replyTo;
+
+                    boolean refresh = data.getBoolean(EXTRA_REFRESH, false) ||
+                                      mDiscoveryCache.isStale(System.currentTimeMillis());
+
+                    if (refresh && mBTAvailable && mBTEnabled) {
+                        mDiscoveryClient = client;
+
+                        if (!mBluetoothAdapter.isDiscovering()) {
+                            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "Refresh discovery cache");
+                            mBluetoothAdapter.startDiscovery();
+                        }
+                    } else {
+                        refresh = false;
+                    }
+
+                    getDiscovered(replydata);
+                    replydata.putBoolean(EXTRA_REFRESHING, refresh);
+                    sendReply(client, Reply.DISCOVERED, replydata);
+                    break;
+
+                case Command.SET_LOG_LEVEL:
+                    int level = data.getInt(EXTRA_LOG_LEVEL, BTLog.NONE);
+                    int subsystem = data.getInt(EXTRA_LOG_SUBSYSTEM);
+
+                    if (!BTLog.isLevel(level) ||
+                        (data.containsKey(EXTRA_LOG_SUBSYSTEM) && !BTLog.isSubsystem(subsystem))) {
+                        if (BTLog.error(LOG)) Log.e(TAG, "Invalid log level " + level + " for " + subsystem);
+                        commandFailed(msg, null);
+                        break;
+                    }
+
+                    // Without a subsystem the level applies to all of them
+                    if (data.containsKey(EXTRA_LOG_SUBSYSTEM)) {
+                        BTLog.setLevel(subsystem, level);
+                    } else {
+                        BTLog.setLevel(level);
+                    }
+                    break;
+
+                default:
+                    super.handleMessage(msg);
+            }
+        }
+    }
+
+    // Bluetooth Handling --------------------------------------------------------------------------
+
+    private final class BTBroadcastReceiver extends BroadcastReceiver {
+        private static final String TAG = "BTBroadcastReceiver";
+
+        private Context mmContext;
+
+        private boolean mmRegistered = false;
+
+        BTBroadcastReceiver(Context context)
+        {
+            if (!mmRegistered) {
+                if (DBG && BTLog.debug(LOG)) Log.d(TAG, "BTBroadcastReceiver()");
+
+                mmContext = context;
+
+                IntentFilter intentFilter = new IntentFilter();
+                intentFilter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
+                intentFilter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+                intentFilter.addAction(BluetoothDevice.ACTION_PAIRING_REQUEST);
+                intentFilter.addAction(BluetoothDevice.ACTION_UUID);
+                intentFilter.addAction(BluetoothDevice.ACTION_NAME_CHANGED);
+                intentFilter.addAction(BluetoothDevice.ACTION_FOUND);
+                intentFilter.addAction(BluetoothAdapter.ACTION_DISCOVERY_STARTED);
+                intentFilter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
+                mmContext.registerReceiver(this, intentFilter);
+            }
+        }
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (DBG && BTLog.verbose(LOG)) Log.v(TAG, "onReceive(" + intent + ")");
+            String action = intent.getAction();
+
+            if (action.equals(BluetoothAdapter.ACTION_STATE_CHANGED)) {
+                processStateChange(intent);
+            } else if (action.equals(BluetoothDevice.ACTION_BOND_STATE_CHANGED)) {
+                processBondStateChange(intent);
+            } else if (action.equals(BluetoothDevice.ACTION_PAIRING_REQUEST)) {
+                processPairingRequest(intent);
+            } else if (action.equals(BluetoothDevice.ACTION_NAME_CHANGED)) {
+                processNameChanged(intent);
+            } else if (action.equals(BluetoothDevice.ACTION_UUID)) {
+                processUUID(intent);
+            } else if (action.equals(BluetoothDevice.ACTION_FOUND)) {
+                processFound(intent);
+            } else if (action.equals(BluetoothAdapter.ACTION_DISCOVERY_STARTED)) {
+                mDiscoveryCache.discoveryStarted(SystemClock.elapsedRealtime());
+            } else if (action.equals(BluetoothAdapter.ACTION_DISCOVERY_FINISHED)) {
+                processDiscoveryFinished();
+            }
+        }
+
+        void close() {
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "close()");
+            try {
+                mmContext.unregisterReceiver(this);
+            } catch (Exception e) {
+            } finally {
+                mmRegistered = false;
+            }
+        }
+
+        private void processStateChange(Intent intent) {
+            int previousState = intent.getIntExtra(BluetoothAdapter.EXTRA_PREVIOUS_STATE, -1);
+            int currentState = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, -1);
+
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "processStateChange(" + previousState + " -> " + currentState + ")");
+
+            switch (currentState) {
+                case BluetoothAdapter.STATE_ON:
+                    mBTEnabled = true;
+                    sendReply(Reply.ENABLED, null);
+                    break;
+                case BluetoothAdapter.STATE_OFF:
+                    mBTEnabled = false;
+                    sendReply(Reply.DISABLED, null);
+                    break;
+            }
+
+        }
+
+        // Feeds the running bond batch on the service thread
+        private void processBondStateChange(Intent intent) {
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            int previousState = intent.getIntExtra(BluetoothDevice.EXTRA_PREVIOUS_BOND_STATE, -1);
+            int currentState = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, -1);
+
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "processBondStateChange(" + device.getAddress() + ": " + previousState + " -> " + currentState + ")");
+
+            mDeviceHandler.obtainMessage(MSG_BOND_STATE, currentState, previousState, device.getAddress()).sendToTarget();
+        }
+
+        private void processPairingRequest(Intent intent) {
+
+        }
+
+        private void processNameChanged(Intent intent) {
+
+        }
+
+        private void processUUID(Intent intent) {
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "processUUID()");
+
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            Parcelable[] uuids = intent.getParcelableArrayExtra(BluetoothDevice.EXTRA_UUID);
+
+            if (uuids != null) {
+                for (Parcelable uuid : uuids) {
+                    if (DBG && BTLog.debug(LOG)) Log.d(TAG, uuid.toString());
+                }
+            }
+
+            mChannelCache.putUUIDs(device.getAddress(), uuids, BTDevice.SPP_UUID);
+        }
+
+        // Any discovery fills the cache, not only the ones started by GET_DISCOVERED
+        private void processFound(Intent intent) {
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            BluetoothClass deviceClass = intent.getParcelableExtra(BluetoothDevice.EXTRA_CLASS);
+            short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE);
+
+            String name = intent.getStringExtra(BluetoothDevice.EXTRA_NAME);
+            if (name == null) name = device.getName();
+
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "processFound(" + device.getAddress() + ", " + rssi + ")");
+
+            BTDiscoveryCache.Entry entry = mDiscoveryCache.update(device.getAddress(), name,
+                    (deviceClass != null) ? deviceClass.getDeviceClass() : 0, rssi, System.currentTimeMillis());
+
+            Messenger client = mDiscoveryClient;
+
+            if (client != null) {
+                Bundle data = new Bundle();
+                data.putString(EXTRA_ADDRESS, entry.address);
+                data.putString(EXTRA_NAME, entry.name);
+                data.putInt(EXTRA_CLASS, entry.deviceClass);
+                data.putShort(EXTRA_RSSI, entry.rssi);
+                data.putLong(EXTRA_LAST_SEEN, entry.lastSeen);
+
+                // Its process is gone, the rest of the discovery has nobody to go to
+                if (!sendReply(client, Reply.DEVICE_FOUND, data)) {
+                    mDiscoveryClient = null;
+                }
+            }
+        }
+
+        private void processDiscoveryFinished() {
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "processDiscoveryFinished()");
+
+            mDiscoveryCache.discoveryFinished(System.currentTimeMillis(), SystemClock.elapsedRealtime());
+
+            Messenger client = mDiscoveryClient;
+            mDiscoveryClient = null;
+
+            if (client != null) {
+                sendReply(client, Reply.DISCOVERY_FINISHED, null);
+            }
+        }
+    }
+
+    private class DeviceHandler extends Handler {
+        private static final String TAG = "BTDeviceHandler";
+
+        DeviceHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (DBG && BTLog.verbose(LOG)) Log.v(TAG, "handleMessage(" + msg + ")");
+
+            String address = msg.getData().getString(BTDevice.EXTRA_ADDRESS);
+            Bundle data = new Bundle();
+
+            switch (msg.what) {
+                case MSG_REQUEST_TIMEOUT:
+                    expireRequests((BTRequestTracker) msg.obj);
+                    break;
+
+                case MSG_BOND_STATE:
+                    BTBondBatch bondBatch = getBondBatch();
+
+                    if (bondBatch == null || !msg.obj.equals(bondBatch.current())) break;
+
+                    int bondResult = bondBatch.resultFor(msg.arg2, msg.arg1);
+
+                    if (bondResult != BTBondBatch.RESULT_PENDING) {
+                        bondProgress(bondBatch, bondResult);
+                        runBondBatch(bondBatch);
+                    }
+                    break;
+
+                case MSG_BOND_TIMEOUT:
+                    BTBondBatch timedOut = (BTBondBatch) msg.obj;
+
+                    bondProgress(timedOut, BTBondBatch.RESULT_TIMEOUT);
+                    runBondBatch(timedOut);
+                    break;
+
+                case BTDevice.Notification.CONNECTED:
                     data.putString(EXTRA_ADDRESS, address);
                     sendReply(Reply.CONNECTED, data);
+                    mClients.dispatchCallback(Reply.CONNECTED, address, null, 0);
+
+                    onConnectResult(address, BTConnectBatch.RESULT_CONNECTED);
                     break;
 
                 case BTDevice.Notification.CONNECTION_FAILED:
-                    if (mConnectedDevices.containsKey(address)) {
-                        mConnectedDevices.remove(address);
-                    }
+                case BTDevice.Notification.CONNECTION_TIMEOUT:
+                    removeDevice(address);
+
+                    data.putString(EXTRA_ADDRESS, address);
+                    sendReply(Reply.CONNECT_FAILED, data);
+                    mClients.dispatchCallback(Reply.CONNECT_FAILED, address, null, 0);
+
+                    onConnectResult(address, (msg.what == BTDevice.Notification.CONNECTION_TIMEOUT) ?
+                            BTConnectBatch.RESULT_TIMEOUT : BTConnectBatch.RESULT_FAILED);
                     break;
 
                 case BTDevice.Notification.CONNECTION_LOST:
-                    if (mConnectedDevices.containsKey(address)) {
-                        mConnectedDevices.remove(address);
-                    }
-                   break;
+                    removeDevice(address);
+
+                    // Messenger clients have to notice themselves, callbacks are told
+                    mClients.dispatchCallback(Reply.DISCONNECTED, address, null, 0);
+
+                    // A batch still waiting for the device won't get it anymore
+                    onConnectResult(address, BTConnectBatch.RESULT_FAILED);
+                    break;
 
                 case BTDevice.Notification.DISCONNECTED:
-                    if (mConnectedDevices.containsKey(address)) {
-                        mConnectedDevices.remove(address);
-                    }
+                    removeDevice(address);
 
                     data.putString(EXTRA_ADDRESS, address);
                     sendReply(Reply.DISCONNECTED, data);
+                    mClients.dispatchCallback(Reply.DISCONNECTED, address, null, 0);
+
+                    onConnectResult(address, BTConnectBatch.RESULT_FAILED);
                     break;
 
                 case BTDevice.Notification.DATA_RECEIVED:
-                    byte[] received = msg.getData().getByteArray(BTDevice.EXTRA_DATA);
+                    // The device that queued the data, even if it was removed since (what it
+                    // received before the connection was lost still goes out)
+                    BTDevice receivedFrom = (BTDevice) msg.obj;
 
-                    data.putString(EXTRA_ADDRESS, address);
-                    data.putString(EXTRA_DATA, new String(received));
-
-                    sendReply(Reply.RECEIVED, data);
+                    if (receivedFrom.getState() != BTDevice.State.CLOSED) {
+                        deliverReceived(address, receivedFrom);
+                    }
                     break;
 
                 case BTDevice.Notification.DATA_SENT:
+                    BTDevice sentFrom = mDevices.get(address);
+
+                    data.putString(EXTRA_ADDRESS, address);
+                    data.putInt(EXTRA_LENGTH, msg.arg1);
+
+                    if (sentFrom != null) {
+                        data.putInt(EXTRA_QUEUE_DEPTH, sentFrom.getWriteQueueDepth());
+                        data.putInt(EXTRA_DROPPED, sentFrom.getWriteDrops());
+                    }
+
+                    sendReply(Reply.SENT, data);
+                    mClients.dispatchCallback(Reply.SENT, address, null, msg.arg1);
                     break;
             }
         }
-    };
+    }
 
     // Helper Functions ----------------------------------------------------------------------------
 
-    private String[] getDevices() {
-        List<String> devices = new ArrayList<String>();
+    // Raw bytes from EXTRA_DATA (optionally a slice of it), or EXTRA_TEXT encoded with
+    // EXTRA_CHARSET (UTF-8 if not given). Returns null if the command carries neither.
+    private byte[] getPayload(Bundle data) {
+        byte[] bytes = data.getByteArray(EXTRA_DATA);
+
+        if (bytes != null) {
+            int offset = data.getInt(EXTRA_DATA_OFFSET, 0);
+            int length = data.getInt(EXTRA_LENGTH, bytes.length - offset);
+
+            if (offset < 0 || length < 0 || offset + length > bytes.length) {
+                if (BTLog.error(LOG)) Log.e(TAG, "Invalid payload range");
+                return null;
+            }
+
+            if (offset == 0 && length == bytes.length) {
+                return bytes;
+            }
+
+            return Arrays.copyOfRange(bytes, offset, offset + length);
+        }
+
+        String text = data.getString(EXTRA_TEXT);
+
+        if (text != null) {
+            String name = data.getString(EXTRA_CHARSET);
+            Charset charset = (name != null) ? getCharset(name) : UTF8;
+
+            if (charset == null) {
+                if (BTLog.error(LOG)) Log.e(TAG, "Unsupported charset " + name);
+                return null;
+            }
+
+            return text.getBytes(charset);
+        }
+
+        return null;
+    }
+
+    // Drains the device's receive queue. Stops early when the client's ack window is used up,
+    // the rest follows its next ACK.
+    //
+    // Coalescing devices get one RECEIVED per drain (split at the coalescing size) with the
+    // chunk boundaries in EXTRA_LENGTHS, or one DATA_AVAILABLE when streaming. Devices with
+    // pipelined requests are not coalesced, every response has to be matched on its own.
+    private void deliverReceived(String address, BTDevice device) {
+        // Drained by the device's pipe
+        if (device.hasReceiveConsumer()) return;
+
+        BTReceiveQueue.Chunk chunk = mChunk;
+
+        boolean coalesce = device.isReceiveCoalescing() && !mRequestTrackers.containsKey(address);
+        int size = device.getReceiveCoalesceSize();
+        BTSharedRing stream = mStreams.get(address);
+        long streamOffset = -1;
+
+        while (device.pollReceived(chunk)) {
+            device.getStats().record(BTStats.QUEUE_DELAY, SystemClock.uptimeMillis() - chunk.queued);
+
+            if (!coalesce) {
+                dispatchReceived(address, device, chunk.buffer, chunk.offset, chunk.length);
+            } else if (stream != null) {
+                streamOffset = stream.write(chunk.buffer.data, chunk.offset, chunk.length);
+                chunk.buffer.recycle();
+            } else {
+                batchReceived(chunk);
+                chunk.buffer.recycle();
+
+                if (size > 0 && mReceiveBatch.size() >= size) {
+                    flushReceived(address, device);
+                }
+            }
+
+            chunk.buffer = null;
+        }
+
+        if (streamOffset >= 0) {
+            Bundle data = new Bundle();
+            data.putString(EXTRA_ADDRESS, address);
+            data.putLong(EXTRA_OFFSET, streamOffset);
+
+            device.getStats().add(BTStats.DELIVERIES, 1);
+            sendReply(Reply.DATA_AVAILABLE, data);
+        }
+
+        flushReceived(address, device);
+    }
+
+    private void batchReceived(BTReceiveQueue.Chunk chunk) {
+        if (mReceiveBatchCount == mReceiveBatchLengths.length) {
+            mReceiveBatchLengths = Arrays.copyOf(mReceiveBatchLengths, 2 * mReceiveBatchCount);
+        }
+
+        mReceiveBatch.write(chunk.buffer.data, chunk.offset, chunk.length);
+        mReceiveBatchLengths[mReceiveBatchCount++] = chunk.length;
+    }
+
+    private void flushReceived(String address, BTDevice device) {
+        if (mReceiveBatchCount == 0) return;
+
+        boolean messengers = mClients.hasSubscriber(Reply.RECEIVED, address);
+        boolean callbacks = mClients.hasCallback(Reply.RECEIVED, address);
+
+        if (!messengers && !callbacks) {
+            mReceiveBatch.reset();
+            mReceiveBatchCount = 0;
+            return;
+        }
+
+        byte[] bytes = mReceiveBatch.toByteArray();
+
+        if (messengers) {
+            Bundle data = new Bundle();
+            data.putString(EXTRA_ADDRESS, address);
+            data.putIntArray(EXTRA_LENGTHS, Arrays.copyOf(mReceiveBatchLengths, mReceiveBatchCount));
+
+            Charset charset = device.getCharset();
+
+            // Decoded as a whole, characters split across chunks come out right
+            if (charset != null) {
+                data.putString(EXTRA_TEXT, new String(bytes, charset));
+            } else {
+                data.putByteArray(EXTRA_DATA, bytes);
+            }
+
+            sendReply(Reply.RECEIVED, data);
+        }
+
+        // One callback per batch, the boundaries are not passed on
+        if (callbacks) {
+            mClients.dispatchCallback(Reply.RECEIVED, address, bytes, bytes.length);
+        }
+
+        mReceiveBatch.reset();
+        mReceiveBatchCount = 0;
+
+        device.getStats().add(BTStats.DELIVERIES, 1);
+    }
+
+    // Passes one chunk on as RESPONSE, DATA_AVAILABLE or RECEIVED and recycles its buffer
+    private void dispatchReceived(String address, BTDevice device, BTBuffer received, int offset, int length) {
+        BTSharedRing stream = mStreams.get(address);
+        BTRequestTracker tracker = mRequestTrackers.get(address);
+        Bundle data = new Bundle();
+
+        data.putString(EXTRA_ADDRESS, address);
+
+        BTRequestTracker.Request request = (tracker != null) ?
+                tracker.match(received.data, offset, length) : null;
+
+        if (request != null) {
+            data.putInt(EXTRA_REQUEST_ID, request.id);
+            data.putInt(EXTRA_TAG, request.tag);
+            data.putLong(EXTRA_LATENCY, SystemClock.uptimeMillis() - request.sent);
+            data.putByteArray(EXTRA_DATA, Arrays.copyOfRange(received.data, offset, offset + length));
+            received.recycle();
+
+            device.getStats().add(BTStats.DELIVERIES, 1);
+            sendReply(Reply.RESPONSE, data);
+
+            // A slot in the window is free again
+            sendRequests(tracker);
+            return;
+        }
+
+        if (stream != null) {
+            data.putLong(EXTRA_OFFSET, stream.write(received.data, offset, length));
+            received.recycle();
+
+            device.getStats().add(BTStats.DELIVERIES, 1);
+            sendReply(Reply.DATA_AVAILABLE, data);
+            return;
+        }
+
+        boolean messengers = mClients.hasSubscriber(Reply.RECEIVED, address);
+        boolean callbacks = mClients.hasCallback(Reply.RECEIVED, address);
+
+        // Nobody subscribed to the device, don't copy or decode the data at all
+        if (!messengers && !callbacks) {
+            received.recycle();
+            return;
+        }
+
+        Charset charset = device.getCharset();
+
+        // Callbacks always get the raw bytes, the same copy as the Messenger clients
+        byte[] bytes = (callbacks || charset == null) ?
+                Arrays.copyOfRange(received.data, offset, offset + length) : null;
+
+        if (messengers) {
+            if (charset != null) {
+                data.putString(EXTRA_TEXT, new String(received.data, offset, length, charset));
+            } else {
+                data.putByteArray(EXTRA_DATA, bytes);
+            }
+        }
+
+        received.recycle();
+
+        device.getStats().add(BTStats.DELIVERIES, 1);
+
+        if (messengers) {
+            sendReply(Reply.RECEIVED, data);
+        }
+
+        if (callbacks) {
+            mClients.dispatchCallback(Reply.RECEIVED, address, bytes, length);
+        }
+    }
+
+    // Creates and connects a device configured from the CONNECT extras. Returns false if the
+    // address is already connected or connecting, or replies CONNECT_FAILED and returns false
+    // if the extras are invalid.
+    private boolean connectDevice(String address, Bundle data, boolean cancelDiscovery) {
+        if (mDevices.get(address) != null) return false;
+
+        if (BTDeviceRegistry.parse(address) == BTDeviceRegistry.INVALID || !checkConnectExtras(data)) {
+            Bundle replydata = new Bundle();
+            replydata.putString(EXTRA_ADDRESS, address);
+
+            sendReply(Reply.CONNECT_FAILED, replydata);
+            mClients.dispatchCallback(Reply.CONNECT_FAILED, address, null, 0);
+            return false;
+        }
+
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "Connect to " + address);
+        BTDevice device = new BTDevice(mContext, mDeviceHandler, mIOEngine, mChannelCache);
 
-        for (ArrayMap.Entry<String, BTDevice> entry : mConnectedDevices.entrySet()) {
-            devices.add(entry.getKey());
+        if (mSimulator != null && mSimulator.hasAddress(address)) {
+            device.setTransportFactory(mSimulator);
         }
 
-        return devices.toArray(new String[devices.size()]);
+        if (data.containsKey(EXTRA_BUFFER_SIZE)) {
+            device.setReceiveBufferSize(data.getInt(EXTRA_BUFFER_SIZE));
+        }
+
+        if (data.containsKey(EXTRA_QUEUE_SIZE)) {
+            device.setWriteQueueSize(data.getInt(EXTRA_QUEUE_SIZE));
+        }
+
+        if (data.containsKey(EXTRA_COALESCE_DELAY)) {
+            device.setCoalesceDelay(data.getInt(EXTRA_COALESCE_DELAY));
+        }
+
+        if (data.containsKey(EXTRA_FRAMING)) {
+            device.setFramer(createFramer(data));
+        }
+
+        if (data.containsKey(EXTRA_RECEIVE_WINDOW) || data.containsKey(EXTRA_OVERFLOW)) {
+            device.setReceiveWindow(data.getInt(EXTRA_RECEIVE_WINDOW, BTReceiveQueue.DEFAULT_CAPACITY),
+                                    data.getInt(EXTRA_OVERFLOW, Overflow.BLOCK));
+        }
+
+        if (data.containsKey(EXTRA_RECEIVE_COALESCE_DELAY)) {
+            device.setReceiveCoalescing(data.getInt(EXTRA_RECEIVE_COALESCE_SIZE, 0),
+                                        data.getInt(EXTRA_RECEIVE_COALESCE_DELAY));
+        }
+
+        // Opt-in end-to-end flow control, the client has to send ACK for what it processed
+        if (data.containsKey(EXTRA_ACK_WINDOW)) {
+            device.setAckWindow(data.getInt(EXTRA_ACK_WINDOW));
+        }
+
+        if (data.getBoolean(EXTRA_RECONNECT, false)) {
+            device.setAutoReconnect(true,
+                    data.getInt(EXTRA_RECONNECT_BASE, BTBackoff.DEFAULT_BASE),
+                    data.getInt(EXTRA_RECONNECT_MAX, BTBackoff.DEFAULT_MAX),
+                    data.getInt(EXTRA_RECONNECT_ATTEMPTS, 0));
+        }
+
+        // Opt-in text decoding of received data
+        if (data.containsKey(EXTRA_CHARSET)) {
+            device.setCharset(getCharset(data.getString(EXTRA_CHARSET)));
+        }
+
+        if (data.containsKey(EXTRA_CONNECT_TIMEOUT)) {
+            device.setConnectTimeout(data.getInt(EXTRA_CONNECT_TIMEOUT));
+        }
+
+        device.connect(address, cancelDiscovery);
+        mDevices.put(address, device);
+
+        return true;
+    }
+
+    // Client addresses in the canonical form, in place. Invalid ones are left as given, they
+    // match no device.
+    private static void normalizeAddresses(Bundle data) {
+        String address = data.getString(EXTRA_ADDRESS);
+        String normalized = BTDeviceRegistry.normalize(address);
+
+        if (normalized != null && !normalized.equals(address)) {
+            data.putString(EXTRA_ADDRESS, normalized);
+        }
+
+        String[] addresses = data.getStringArray(EXTRA_ADDRESSES);
+
+        if (addresses != null) {
+            data.putStringArray(EXTRA_ADDRESSES, normalizeAddresses(addresses));
+        }
+    }
+
+    // A normalized copy, the caller's array stays as it is
+    private static String[] normalizeAddresses(String[] addresses) {
+        if (addresses == null) return null;
+
+        String[] normalized = new String[addresses.length];
+
+        for (int i = 0; i < addresses.length; i++) {
+            String address = BTDeviceRegistry.normalize(addresses[i]);
+            normalized[i] = (address != null) ? address : addresses[i];
+        }
+
+        return normalized;
+    }
+
+    // The CONNECT extras the device would throw on, checked before anything is created
+    private boolean checkConnectExtras(Bundle data) {
+        if (!inRange(data, EXTRA_BUFFER_SIZE, 1, Integer.MAX_VALUE) ||
+            !inRange(data, EXTRA_QUEUE_SIZE, 1, Integer.MAX_VALUE) ||
+            !inRange(data, EXTRA_COALESCE_DELAY, 0, Integer.MAX_VALUE) ||
+            !inRange(data, EXTRA_CONNECT_TIMEOUT, 0, Integer.MAX_VALUE) ||
+            !inRange(data, EXTRA_RECEIVE_WINDOW, 1, Integer.MAX_VALUE) ||
+            !inRange(data, EXTRA_OVERFLOW, Overflow.BLOCK, Overflow.DROP_NEWEST) ||
+            !inRange(data, EXTRA_ACK_WINDOW, 0, Integer.MAX_VALUE) ||
+            !inRange(data, EXTRA_RECEIVE_COALESCE_SIZE, 0, Integer.MAX_VALUE) ||
+            !inRange(data, EXTRA_RECEIVE_COALESCE_DELAY, 0, Integer.MAX_VALUE)) {
+            return false;
+        }
+
+        if (data.containsKey(EXTRA_FRAMING) && !checkFraming(data)) {
+            return false;
+        }
+
+        if (data.getBoolean(EXTRA_RECONNECT, false)) {
+            int base = data.getInt(EXTRA_RECONNECT_BASE, BTBackoff.DEFAULT_BASE);
+            int max = data.getInt(EXTRA_RECONNECT_MAX, BTBackoff.DEFAULT_MAX);
+
+            if (base <= 0 || max < base || !inRange(data, EXTRA_RECONNECT_ATTEMPTS, 0, Integer.MAX_VALUE)) {
+                if (BTLog.error(LOG)) Log.e(TAG, "Invalid reconnect settings " + base + "/" + max);
+                return false;
+            }
+        }
+
+        if (data.containsKey(EXTRA_CHARSET) && getCharset(data.getString(EXTRA_CHARSET)) == null) {
+            if (BTLog.error(LOG)) Log.e(TAG, "Unsupported charset " + data.getString(EXTRA_CHARSET));
+            return false;
+        }
+
+        return true;
+    }
+
+    // The arguments the BTFramer factories would throw on
+    private static boolean checkFraming(Bundle data) {
+        int framing = data.getInt(EXTRA_FRAMING, Framing.NONE);
+
+        if (framing == Framing.NONE) return true;
+
+        if (!inRange(data, EXTRA_FRAME_SIZE, 1, Integer.MAX_VALUE)) return false;
+
+        if (framing == Framing.DELIMITER) {
+            byte[] delimiter = data.getByteArray(EXTRA_FRAME_DELIMITER);
+
+            if (delimiter == null || delimiter.length == 0) {
+                if (BTLog.error(LOG)) Log.e(TAG, "Missing frame delimiter");
+                return false;
+            }
+        } else if (framing == Framing.LENGTH_PREFIXED) {
+            int headerSize = data.getInt(EXTRA_FRAME_HEADER_SIZE, 1);
+
+            if (headerSize != 1 && headerSize != 2 && headerSize != 4) {
+                if (BTLog.error(LOG)) Log.e(TAG, "Invalid frame header size " + headerSize);
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // False (and logged) if the extra is given and outside min..max
+    private static boolean inRange(Bundle data, String key, int min, int max) {
+        if (!data.containsKey(key)) return true;
+
+        int value = data.getInt(key);
+
+        if (value >= min && value <= max) return true;
+
+        if (BTLog.error(LOG)) Log.e(TAG, "Invalid " + key + " " + value);
+        return false;
+    }
+
+    // Null for a name that is missing, illegal or not supported on this device
+    private static Charset getCharset(String name) {
+        try {
+            return Charset.forName(name);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // Starts as many connects of the batch as its parallel limit allows
+    private void startBatch(BTConnectBatch batch, Bundle data) {
+        String address;
+
+        while ((address = batch.next(SystemClock.uptimeMillis())) != null) {
+            if (connectDevice(address, data, false)) continue;
+
+            BTDevice existing = mDevices.get(address);
+            int state = (existing != null) ? existing.getState() : BTDevice.State.DISCONNECTED;
+
+            // A connect already in progress reports later. Nothing else does: a reconnect
+            // doesn't report CONNECTED, a draining device only DISCONNECTED.
+            if (state == BTDevice.State.CONNECTING) continue;
+
+            batch.onResult(address, (state == BTDevice.State.CONNECTED) ?
+                    BTConnectBatch.RESULT_CONNECTED : BTConnectBatch.RESULT_FAILED, SystemClock.uptimeMillis());
+        }
+
+        if (batch.isDone()) {
+            mConnectBatches.remove(batch);
+
+            Bundle replydata = new Bundle();
+            replydata.putStringArray(EXTRA_ADDRESSES, batch.getAddresses());
+            replydata.putIntArray(EXTRA_RESULTS, batch.getResults());
+            replydata.putLongArray(EXTRA_TIMES, batch.getTimes());
+
+            sendReply(Reply.BATCH_CONNECTED, replydata);
+        }
+    }
+
+    private void onConnectResult(String address, int result) {
+        long now = SystemClock.uptimeMillis();
+
+        for (BTConnectBatch batch : new ArrayList<BTConnectBatch>(mConnectBatches.keySet())) {
+            if (batch.onResult(address, result, now)) {
+                startBatch(batch, mConnectBatches.get(batch));
+            }
+        }
+    }
+
+    private void putEngineStats(Bundle replydata) {
+        replydata.putInt(EXTRA_CONNECT_THREADS, mIOEngine.getConnectThreads());
+        replydata.putInt(EXTRA_CONNECT_ACTIVE, mIOEngine.getConnectActive());
+        replydata.putInt(EXTRA_CONNECT_QUEUED, mIOEngine.getConnectQueued());
+        replydata.putInt(EXTRA_CONNECT_UTILIZATION, mIOEngine.getConnectUtilization());
+        replydata.putInt(EXTRA_IO_THREADS, mIOEngine.getIOThreads());
+        replydata.putInt(EXTRA_IO_ACTIVE, mIOEngine.getIOActive());
+        replydata.putInt(EXTRA_IO_QUEUED, mIOEngine.getIOQueued());
+        replydata.putInt(EXTRA_IO_UTILIZATION, mIOEngine.getIOUtilization());
+        replydata.putInt(EXTRA_WRITE_THREADS, mIOEngine.getWriteThreads());
+        replydata.putInt(EXTRA_WRITE_ACTIVE, mIOEngine.getWriteActive());
+        replydata.putInt(EXTRA_WRITE_QUEUED, mIOEngine.getWriteQueued());
+        replydata.putInt(EXTRA_WRITE_UTILIZATION, mIOEngine.getWriteUtilization());
+        replydata.putInt(EXTRA_BLOCKING_READS, mIOEngine.getBlockingReads());
+        replydata.putInt(EXTRA_POLL_INTERVAL, mIOEngine.getPollInterval());
+    }
+
+    private Bundle getStats(String address, BTDevice device) {
+        BTStats stats = device.getStats();
+        long[] counters = stats.getCounters();
+
+        // Kept by the device itself
+        counters[BTStats.RECONNECTS] = device.getReconnects();
+        counters[BTStats.DOWNTIME] = device.getDowntime();
+
+        Bundle replydata = new Bundle();
+        replydata.putString(EXTRA_ADDRESS, address);
+        replydata.putLongArray(EXTRA_COUNTERS, counters);
+        replydata.putInt(EXTRA_RECEIVE_QUEUED, device.getReceiveQueued());
+        replydata.putLongArray(EXTRA_CHUNK_SIZES, stats.getHistogram(BTStats.CHUNK_SIZE));
+        replydata.putLongArray(EXTRA_QUEUE_DELAYS, stats.getHistogram(BTStats.QUEUE_DELAY));
+        replydata.putLongArray(EXTRA_WRITE_LATENCIES, stats.getHistogram(BTStats.WRITE_LATENCY));
+
+        return replydata;
+    }
+
+    private BTDeviceInfo getDeviceInfo(String address, BTDevice device) {
+        long[] counters = device.getStats().getCounters();
+
+        counters[BTStats.RECONNECTS] = device.getReconnects();
+        counters[BTStats.DOWNTIME] = device.getDowntime();
+
+        return new BTDeviceInfo(address, device.getName(), device.isConnected(), device.isReconnecting(),
+                device.getReceiveQueued(), device.getWriteQueueDepth(), counters);
+    }
+
+    private BTBondBatch getBondBatch() {
+        return mBondBatches.isEmpty() ? null : mBondBatches.keySet().iterator().next();
+    }
+
+    // Works through the batch until a device has to be waited for, then starts the next batch
+    private void runBondBatch(BTBondBatch batch) {
+        String address;
+
+        while ((address = batch.next(SystemClock.uptimeMillis())) != null) {
+            // getRemoteDevice() throws for it, counts as failed in the batch result
+            if (BTDeviceRegistry.parse(address) == BTDeviceRegistry.INVALID) {
+                if (BTLog.error(LOG)) Log.e(TAG, "Invalid bond address " + address);
+                bondProgress(batch, BTBondBatch.RESULT_FAILED);
+                continue;
+            }
+
+            // Discovery slows down bonding a lot
+            mBluetoothAdapter.cancelDiscovery();
+
+            int result = batch.start(mBluetoothAdapter.getRemoteDevice(address));
+
+            if (result == BTBondBatch.RESULT_PENDING) {
+                mDeviceHandler.sendMessageDelayed(mDeviceHandler.obtainMessage(MSG_BOND_TIMEOUT, batch), batch.getTimeout());
+                return;
+            }
+
+            bondProgress(batch, result);
+        }
+
+        if (!batch.isDone()) return;
+
+        Messenger client = mBondBatches.remove(batch);
+
+        Bundle replydata = new Bundle();
+        replydata.putStringArray(EXTRA_ADDRESSES, batch.getAddresses());
+        replydata.putIntArray(EXTRA_RESULTS, batch.getResults());
+        replydata.putLongArray(EXTRA_TIMES, batch.getTimes());
+
+        sendReply(client, Reply.BOND_FINISHED, replydata);
+
+        BTBondBatch next = getBondBatch();
+
+        if (next != null) {
+            runBondBatch(next);
+        }
+    }
+
+    private void bondProgress(BTBondBatch batch, int result) {
+        mDeviceHandler.removeMessages(MSG_BOND_TIMEOUT, batch);
+
+        String address = batch.current();
+        int index = batch.onResult(result, SystemClock.uptimeMillis());
+
+        if (index < 0) return;
+
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "bondProgress(" + address + ", " + result + ")");
+
+        Bundle replydata = new Bundle();
+        replydata.putString(EXTRA_ADDRESS, address);
+        replydata.putInt(EXTRA_RESULT, result);
+        replydata.putLong(EXTRA_TIME, batch.getTimes()[index]);
+        replydata.putInt(EXTRA_INDEX, index);
+        replydata.putInt(EXTRA_COUNT, batch.getAddresses().length);
+
+        sendReply(mBondBatches.get(batch), Reply.BOND_PROGRESS, replydata);
+    }
+
+    // EXTRA_FRAME_SIZE is the frame size for FIXED and the maximum frame size otherwise
+    private BTFramer createFramer(Bundle data) {
+        int size = data.getInt(EXTRA_FRAME_SIZE, BTFramer.DEFAULT_MAX_FRAME);
+
+        switch (data.getInt(EXTRA_FRAMING, Framing.NONE)) {
+            case Framing.DELIMITER:
+                return BTFramer.delimiter(data.getByteArray(EXTRA_FRAME_DELIMITER),
+                                          data.getBoolean(EXTRA_FRAME_STRIP, true),
+                                          size);
+            case Framing.LENGTH_PREFIXED:
+                return BTFramer.lengthPrefixed(data.getInt(EXTRA_FRAME_HEADER_SIZE, 1),
+                                               data.getBoolean(EXTRA_FRAME_BIG_ENDIAN, true),
+                                               size);
+            case Framing.FIXED:
+                return BTFramer.fixed(size);
+            default:
+                return null;
+        }
+    }
+
+    private void removeDevice(String address) {
+        mDevices.remove(address);
+        stopStreaming(address);
+        closePipe(address);
+        failRequests(mRequestTrackers.remove(address));
+    }
+
+    // Sends queued requests as long as the window allows and re-arms the timeout
+    private void sendRequests(BTRequestTracker tracker) {
+        BTDevice device = mDevices.get(tracker.getAddress());
+        long now = SystemClock.uptimeMillis();
+        BTRequestTracker.Request request;
+
+        while ((request = tracker.nextToSend(now)) != null) {
+            if (device == null || !device.send(request.payload)) {
+                tracker.cancel(request);
+                requestFailed(tracker, request, Reply.REQUEST_FAILED);
+            }
+        }
+
+        mDeviceHandler.removeMessages(MSG_REQUEST_TIMEOUT, tracker);
+
+        long deadline = tracker.nextDeadline();
+
+        if (deadline != Long.MAX_VALUE) {
+            mDeviceHandler.sendMessageAtTime(mDeviceHandler.obtainMessage(MSG_REQUEST_TIMEOUT, tracker), deadline);
+        }
+    }
+
+    private void expireRequests(BTRequestTracker tracker) {
+        long now = SystemClock.uptimeMillis();
+        BTRequestTracker.Request request;
+
+        while ((request = tracker.expire(now)) != null) {
+            requestFailed(tracker, request, Reply.REQUEST_TIMEOUT);
+        }
+
+        sendRequests(tracker);
+    }
+
+    private void failRequests(BTRequestTracker tracker) {
+        if (tracker == null) return;
+
+        mDeviceHandler.removeMessages(MSG_REQUEST_TIMEOUT, tracker);
+
+        BTRequestTracker.Request request;
+
+        while ((request = tracker.poll()) != null) {
+            requestFailed(tracker, request, Reply.REQUEST_FAILED);
+        }
+    }
+
+    private void requestFailed(BTRequestTracker tracker, BTRequestTracker.Request request, int reply) {
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "requestFailed(" + tracker.getAddress() + ", " + request.id + ")");
+
+        Bundle data = new Bundle();
+        data.putString(EXTRA_ADDRESS, tracker.getAddress());
+        data.putInt(EXTRA_REQUEST_ID, request.id);
+        data.putInt(EXTRA_TAG, request.tag);
+
+        sendReply(reply, data);
+    }
+
+    private File getStreamFile(String address) {
+        return new File(mContext.getCacheDir(), "stream_" + address.replace(":", "") + ".ring");
+    }
+
+    private boolean startStreaming(String address, int capacity, Bundle replydata) {
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "startStreaming(" + address + ")");
+
+        stopStreaming(address);
+
+        File file = getStreamFile(address);
+
+        try {
+            BTSharedRing stream = BTSharedRing.create(file, capacity);
+            ParcelFileDescriptor fd = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+
+            mStreams.put(address, stream);
+
+            replydata.putParcelable(EXTRA_FD, fd);
+            replydata.putInt(EXTRA_CAPACITY, capacity);
+            return true;
+        } catch (IOException e) {
+            if (BTLog.error(LOG)) Log.e(TAG, "startStreaming() failed", e);
+            file.delete();
+            return false;
+        }
+    }
+
+    private void stopStreaming(String address) {
+        if (mStreams.remove(address) != null) {
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "stopStreaming(" + address + ")");
+
+            // Clients keep their mapping, the file itself is no longer needed
+            getStreamFile(address).delete();
+        }
+    }
+
+    // Replaces an open pipe of the device. Returns null if it isn't connected.
+    private BTPipe openPipe(String address) {
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "openPipe(" + address + ")");
+
+        closePipe(address);
+
+        BTDevice device = mDevices.get(address);
+
+        if (device == null || !device.isConnected()) return null;
+
+        try {
+            BTPipe pipe = BTPipe.open(address, device);
+            mPipes.put(address, pipe);
+            return pipe;
+        } catch (IOException e) {
+            if (BTLog.error(LOG)) Log.e(TAG, "openPipe() failed", e);
+            return null;
+        }
+    }
+
+    private void closePipe(String address) {
+        BTPipe pipe = mPipes.remove(address);
+
+        if (pipe != null) {
+            pipe.close();
+        }
+    }
+
+    // Cached discovery results as parallel arrays
+    private void getDiscovered(Bundle replydata) {
+        List<BTDiscoveryCache.Entry> entries = mDiscoveryCache.getEntries();
+        int count = entries.size();
+
+        String[] addresses = new String[count];
+        String[] names = new String[count];
+        int[] classes = new int[count];
+        short[] rssi = new short[count];
+        long[] lastSeen = new long[count];
+
+        for (int i = 0; i < count; i++) {
+            BTDiscoveryCache.Entry entry = entries.get(i);
+            addresses[i] = entry.address;
+            names[i] = entry.name;
+            classes[i] = entry.deviceClass;
+            rssi[i] = entry.rssi;
+            lastSeen[i] = entry.lastSeen;
+        }
+
+        replydata.putStringArray(EXTRA_ADDRESSES, addresses);
+        replydata.putStringArray(EXTRA_NAMES, names);
+        replydata.putIntArray(EXTRA_CLASSES, classes);
+        replydata.putShortArray(EXTRA_RSSI, rssi);
+        replydata.putLongArray(EXTRA_LAST_SEEN, lastSeen);
+    }
+
+    private String[] getDevices() {
+        return mDevices.addresses();
     }
 }
 
@@ -0,0 +1,162 @@
+package in.konstant.BT;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Memory mapped ring buffer shared between the service (single writer) and a client (reader).
+//
+// Layout: [0] long total bytes written, [8] long end of the write in progress, [16] int
+// capacity, [24] data. The writer never waits for the reader. Positions are absolute byte
+// counts, a reader that falls more than one capacity behind has lost data and read() tells it so.
+//
+// Like a seqlock, the writer publishes the reserved end before it copies and the written
+// position after. The reader checks the reserved end before and after its copy, so bytes a
+// write in progress may have touched are never returned as valid.
+public final class BTSharedRing {
+    private static final int HEADER_SIZE = 24;
+    private static final int OFFSET_POSITION = 0;
+    private static final int OFFSET_RESERVED = 8;
+    private static final int OFFSET_CAPACITY = 16;
+
+    // Written and read around accesses to the mapping, see fence()
+    private static volatile int sFence;
+
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private final ByteBuffer mBuffer;
+    private final int mCapacity;
+
+    // Writer side only
+    private long mPosition;
+
+    private BTSharedRing(ByteBuffer buffer, int capacity) {
+        mBuffer = buffer;
+        mCapacity = capacity;
+    }
+
+    // Writer --------------------------------------------------------------------------------------
+
+    static BTSharedRing create(File file, int capacity) throws IOException {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity <= 0");
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+        try {
+            raf.setLength(HEADER_SIZE + capacity);
+
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+            buffer.putLong(OFFSET_POSITION, 0);
+            buffer.putLong(OFFSET_RESERVED, 0);
+            buffer.putInt(OFFSET_CAPACITY, capacity);
+
+            return new BTSharedRing(buffer, capacity);
+        } finally {
+            raf.close();
+        }
+    }
+
+    // Returns the new write position, i.e. the offset up to which data is available
+    long write(byte[] data, int offset, int length) {
+        // Larger than the whole ring, only the tail survives anyway
+        if (length > mCapacity) {
+            mPosition += length - mCapacity;
+            offset += length - mCapacity;
+            length = mCapacity;
+        }
+
+        // Readers of the region about to be overwritten see it as lost from now on
+        mBuffer.putLong(OFFSET_RESERVED, mPosition + length);
+        fence();
+
+        int index = (int) (mPosition % mCapacity);
+        int first = Math.min(length, mCapacity - index);
+
+        mBuffer.position(HEADER_SIZE + index);
+        mBuffer.put(data, offset, first);
+
+        if (first < length) {
+            mBuffer.position(HEADER_SIZE);
+            mBuffer.put(data, offset + first, length - first);
+        }
+
+        // The data is visible before the position that covers it
+        fence();
+        mPosition += length;
+        mBuffer.putLong(OFFSET_POSITION, mPosition);
+
+        return mPosition;
+    }
+
+    // Reader --------------------------------------------------------------------------------------
+
+    public static BTSharedRing open(FileDescriptor fd) throws IOException {
+        FileInputStream in = new FileInputStream(fd);
+
+        try {
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            return new BTSharedRing(buffer, buffer.getInt(OFFSET_CAPACITY));
+        } finally {
+            in.close();
+        }
+    }
+
+    public long getPosition() {
+        return mBuffer.getLong(OFFSET_POSITION);
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    // Copies data starting at absolute position 'from' into dst. Returns the number of bytes
+    // copied (0 if nothing new), or -1 if 'from' has already been overwritten.
+    public int read(long from, byte[] dst, int offset, int length) {
+        long position = getPosition();
+        fence();
+
+        if (isOverwritten(from)) return -1;
+
+        length = (int) Math.min(length, position - from);
+        if (length <= 0) return 0;
+
+        ByteBuffer view = mBuffer.duplicate();
+        int index = (int) (from % mCapacity);
+        int first = Math.min(length, mCapacity - index);
+
+        view.position(HEADER_SIZE + index);
+        view.get(dst, offset, first);
+
+        if (first < length) {
+            view.position(HEADER_SIZE);
+            view.get(dst, offset + first, length - first);
+        }
+
+        // The writer may have started to lap us while copying
+        fence();
+        if (isOverwritten(from)) return -1;
+
+        return length;
+    }
+
+    // Helpers -------------------------------------------------------------------------------------
+
+    // Whether data at from may have been overwritten by a finished or running write
+    private boolean isOverwritten(long from) {
+        return mBuffer.getLong(OFFSET_RESERVED) - from > mCapacity;
+    }
+
+    // Full barrier for the plain accesses to the mapping: ART brackets volatile accesses with
+    // memory barriers, which also order them against the other process on the same mapping
+    private static void fence() {
+        sFence = 0;
+        int ignored = sFence;
+    }
+}
@@ -0,0 +1,420 @@
+package in.konstant.BT;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Loopback stand-in for a number of SPP devices, for load and soak tests without Bluetooth
+// hardware. BTDevices connect to its virtual addresses through BTTransport.Factory.
+//
+// Every virtual device sends newline terminated messages of MESSAGE_SIZE bytes in bursts, as
+// many per second as its rate allows, can echo everything written to it after a delay and
+// can drop its link at random intervals to exercise reconnects. Data that does not fit into
+// the receive buffer of a link because the reader is behind is dropped and counted.
+final class BTSimulator implements BTTransport.Factory {
+    // Debug
+    private static final String TAG = "BTSimulator";
+    private static final boolean DBG = BTLog.isDebug();
+    private static final int LOG = BTLog.ENGINE;
+
+    public static final int DEFAULT_RATE = 1024;
+    public static final int DEFAULT_BURST = 64;
+
+    public static final int MESSAGE_SIZE = 32;
+    private static final int LINK_BUFFER_SIZE = 64 * 1024;
+
+    // Locally administered, never collides with real hardware
+    private static final String ADDRESS_PREFIX = "02:00:00:00:";
+
+    private final VirtualDevice[] mDevices;
+    private final HashMap<String, VirtualDevice> mByAddress = new HashMap<String, VirtualDevice>();
+
+    private final int mLatency;
+    private final int mDisconnectInterval;
+    private final boolean mEcho;
+
+    private final ScheduledThreadPoolExecutor mExecutor;
+    private final Random mRandom = new Random();
+
+    private volatile boolean mShutdown = false;
+
+    // rate in bytes per second and device, burst in bytes, latency in ms for connects and
+    // echoes, disconnectInterval the mean time between injected link losses (0 = never)
+    BTSimulator(int count, int rate, int burst, int latency, int disconnectInterval, boolean echo) {
+        if (count <= 0 || count > 0xFFFF) throw new IllegalArgumentException("count");
+        if (rate < 0 || burst <= 0 || latency < 0 || disconnectInterval < 0) throw new IllegalArgumentException("config");
+
+        mLatency = latency;
+        mDisconnectInterval = disconnectInterval;
+        mEcho = echo;
+
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "BTSimulator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        mDevices = new VirtualDevice[count];
+
+        // Whole messages per burst, bursts spaced so the device reaches its rate
+        int messages = Math.max(1, burst / MESSAGE_SIZE);
+        long period = (rate > 0) ? Math.max(1, 1000L * messages * MESSAGE_SIZE / rate) : 0;
+
+        for (int i = 0; i < count; i++) {
+            String address = String.format("%s%02X:%02X", ADDRESS_PREFIX, (i + 1) >> 8, (i + 1) & 0xFF);
+
+            mDevices[i] = new VirtualDevice(address, i, messages);
+            mByAddress.put(address, mDevices[i]);
+
+            if (period > 0) {
+                // Spread the devices over the period instead of bursting all at once
+                mExecutor.scheduleAtFixedRate(mDevices[i], period * i / count, period, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "BTSimulator(" + count + " devices, " + messages + " messages every " + period + " ms)");
+    }
+
+    void shutdown() {
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "shutdown()");
+
+        mShutdown = true;
+        mExecutor.shutdownNow();
+
+        for (VirtualDevice device : mDevices) {
+            device.disconnect();
+        }
+    }
+
+    boolean hasAddress(String address) {
+        return mByAddress.containsKey(address);
+    }
+
+    // Connects with the configured latency, replacing an older link of the same device
+    @Override
+    public BTTransport open(String address) throws IOException {
+        VirtualDevice device = mByAddress.get(address);
+
+        if (device == null) throw new IOException("Unknown address " + address);
+        if (mShutdown) throw new IOException("Simulator shut down");
+
+        if (mLatency > 0) {
+            SystemClock.sleep(mLatency);
+        }
+
+        return device.connect();
+    }
+
+    // Stats ---------------------------------------------------------------------------------------
+
+    String[] getAddresses() {
+        String[] addresses = new String[mDevices.length];
+
+        for (int i = 0; i < mDevices.length; i++) {
+            addresses[i] = mDevices[i].mmAddress;
+        }
+
+        return addresses;
+    }
+
+    // Bytes sent by each device
+    long[] getGenerated() {
+        long[] generated = new long[mDevices.length];
+
+        for (int i = 0; i < mDevices.length; i++) {
+            generated[i] = mDevices[i].mmGenerated.get();
+        }
+
+        return generated;
+    }
+
+    // Bytes each device had to drop because its link buffer was full
+    long[] getOverflows() {
+        long[] overflows = new long[mDevices.length];
+
+        for (int i = 0; i < mDevices.length; i++) {
+            overflows[i] = mDevices[i].mmOverflows.get();
+        }
+
+        return overflows;
+    }
+
+    // Bytes written to each device
+    long[] getReceived() {
+        long[] received = new long[mDevices.length];
+
+        for (int i = 0; i < mDevices.length; i++) {
+            received[i] = mDevices[i].mmReceived.get();
+        }
+
+        return received;
+    }
+
+    long[] getDisconnects() {
+        long[] disconnects = new long[mDevices.length];
+
+        for (int i = 0; i < mDevices.length; i++) {
+            disconnects[i] = mDevices[i].mmDisconnects.get();
+        }
+
+        return disconnects;
+    }
+
+    // Virtual device ------------------------------------------------------------------------------
+
+    private final class VirtualDevice implements Runnable {
+        private final String mmAddress;
+
+        // One burst of messages, the sequence numbers are patched in place
+        private final byte[] mmBurst;
+        private long mmSequence;
+
+        private volatile Link mmLink;
+
+        private final AtomicLong mmGenerated = new AtomicLong();
+        private final AtomicLong mmOverflows = new AtomicLong();
+        private final AtomicLong mmReceived = new AtomicLong();
+        private final AtomicLong mmDisconnects = new AtomicLong();
+
+        VirtualDevice(String address, int index, int messages) {
+            mmAddress = address;
+            mmBurst = new byte[messages * MESSAGE_SIZE];
+
+            // "SIM <index> <sequence>" padded with '.' to MESSAGE_SIZE, ending in '\n'
+            byte[] header = String.format("SIM %05d ", index).getBytes();
+
+            for (int m = 0; m < messages; m++) {
+                int base = m * MESSAGE_SIZE;
+
+                Arrays.fill(mmBurst, base, base + MESSAGE_SIZE - 1, (byte) '.');
+                System.arraycopy(header, 0, mmBurst, base, header.length);
+                mmBurst[base + MESSAGE_SIZE - 1] = '\n';
+            }
+        }
+
+        BTTransport connect() {
+            Link link = new Link(this);
+            Link old;
+
+            synchronized (this) {
+                old = mmLink;
+                mmLink = link;
+            }
+
+            if (old != null) old.close();
+
+            if (mDisconnectInterval > 0) {
+                // Uniform in [interval / 2, interval * 3 / 2]
+                long delay = mDisconnectInterval / 2 + (long) (mRandom.nextDouble() * mDisconnectInterval);
+                mExecutor.schedule(new Disconnect(this, link), delay, TimeUnit.MILLISECONDS);
+            }
+
+            return link;
+        }
+
+        void disconnect() {
+            Link link;
+
+            synchronized (this) {
+                link = mmLink;
+                mmLink = null;
+            }
+
+            if (link != null) link.close();
+        }
+
+        // Sends one burst, only while connected
+        @Override
+        public void run() {
+            Link link = mmLink;
+
+            if (link == null) return;
+
+            final int headerSize = 10;
+            final int digits = MESSAGE_SIZE - headerSize - 1;
+
+            for (int base = 0; base < mmBurst.length; base += MESSAGE_SIZE) {
+                long sequence = mmSequence++;
+
+                for (int i = base + headerSize + digits - 1; i >= base + headerSize; i--) {
+                    mmBurst[i] = (byte) ('0' + sequence % 10);
+                    sequence /= 10;
+                }
+            }
+
+            int accepted = link.mmIn.deliver(mmBurst, 0, mmBurst.length);
+
+            mmGenerated.addAndGet(mmBurst.length);
+            mmOverflows.addAndGet(mmBurst.length - accepted);
+        }
+    }
+
+    private static final class Disconnect implements Runnable {
+        private final VirtualDevice mmDevice;
+        private final Link mmLink;
+
+        Disconnect(VirtualDevice device, Link link) {
+            mmDevice = device;
+            mmLink = link;
+        }
+
+        @Override
+        public void run() {
+            synchronized (mmDevice) {
+                if (mmDevice.mmLink != mmLink) return;
+                mmDevice.mmLink = null;
+            }
+
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "Injected disconnect of " + mmDevice.mmAddress);
+
+            mmDevice.mmDisconnects.incrementAndGet();
+            mmLink.close();
+        }
+    }
+
+    // Link ----------------------------------------------------------------------------------------
+
+    private final class Link implements BTTransport {
+        private final VirtualDevice mmDevice;
+        private final LinkInputStream mmIn = new LinkInputStream();
+
+        private final OutputStream mmOut = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                if (mmIn.isClosed()) throw new IOException("Link closed");
+
+                mmDevice.mmReceived.addAndGet(length);
+
+                if (!mEcho) return;
+
+                if (mLatency == 0) {
+                    mmDevice.mmOverflows.addAndGet(length - mmIn.deliver(buffer, offset, length));
+                    return;
+                }
+
+                final byte[] echo = Arrays.copyOfRange(buffer, offset, offset + length);
+
+                mExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        mmDevice.mmOverflows.addAndGet(echo.length - mmIn.deliver(echo, 0, echo.length));
+                    }
+                }, mLatency, TimeUnit.MILLISECONDS);
+            }
+        };
+
+        Link(VirtualDevice device) {
+            mmDevice = device;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return mmIn;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mmOut;
+        }
+
+        @Override
+        public void close() {
+            mmIn.close();
+        }
+
+        @Override
+        public String toString() {
+            return "Link(" + mmDevice.mmAddress + ")";
+        }
+    }
+
+    // Receive buffer of a link, behaves like an RFCOMM socket input stream: once the link is
+    // closed available() returns 0 and read() reports the end of the stream, read() blocks
+    // while it is empty.
+    private static final class LinkInputStream extends InputStream {
+        private final byte[] mmBuffer = new byte[LINK_BUFFER_SIZE];
+        private int mmHead;
+        private int mmCount;
+        private boolean mmClosed;
+
+        // Returns the number of bytes that fit, the rest is dropped
+        synchronized int deliver(byte[] data, int offset, int length) {
+            if (mmClosed) return 0;
+
+            int accepted = Math.min(length, mmBuffer.length - mmCount);
+            int tail = (mmHead + mmCount) % mmBuffer.length;
+            int first = Math.min(accepted, mmBuffer.length - tail);
+
+            System.arraycopy(data, offset, mmBuffer, tail, first);
+            System.arraycopy(data, offset + first, mmBuffer, 0, accepted - first);
+
+            mmCount += accepted;
+            notifyAll();
+
+            return accepted;
+        }
+
+        synchronized boolean isClosed() {
+            return mmClosed;
+        }
+
+        @Override
+        public synchronized int available() {
+            return mmClosed ? 0 : mmCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0) ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+            while (mmCount == 0 && !mmClosed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+            }
+
+            if (mmClosed) return -1;
+
+            int count = Math.min(length, mmCount);
+            int first = Math.min(count, mmBuffer.length - mmHead);
+
+            System.arraycopy(mmBuffer, mmHead, buffer, offset, first);
+            System.arraycopy(mmBuffer, 0, buffer, offset + first, count - first);
+
+            mmHead = (mmHead + count) % mmBuffer.length;
+            mmCount -= count;
+
+            return count;
+        }
+
+        @Override
+        public synchronized void close() {
+            mmClosed = true;
+            notifyAll();
+        }
+    }
+}
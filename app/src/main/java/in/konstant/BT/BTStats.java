@@ -0,0 +1,93 @@
+package in.konstant.BT;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Data path counters and latency histograms of one device. Recording is a single atomic add
+// on preallocated arrays, so the read and write tasks never lock or allocate for it.
+//
+// Histograms have power of two buckets: bucket 0 counts zeros, bucket i > 0 counts values
+// in [2^(i-1), 2^i), the last bucket everything above.
+public final class BTStats {
+    // Counters
+    public static final int BYTES_IN = 0;
+    public static final int CHUNKS_IN = 1;
+    public static final int FRAMES_IN = 2;
+    public static final int BYTES_OUT = 3;
+    public static final int WRITES_OUT = 4;
+    public static final int WRITE_DROPS = 5;
+    public static final int RECONNECTS = 6;
+    public static final int DOWNTIME = 7;
+    public static final int RECEIVE_PAUSES = 8;   // read task stopped for a full receive queue
+    public static final int DROPS_OLDEST = 9;     // queued chunks dropped for newer data
+    public static final int DROPS_NEWEST = 10;    // received chunks dropped for a full queue
+    public static final int DROPPED_BYTES = 11;   // bytes of both kinds of drops
+    public static final int ACK_STALLS = 12;      // delivery held back for client acks
+    public static final int DELIVERIES = 13;      // replies carrying received data
+    public static final int COUNTERS = 14;
+
+    // Histograms
+    public static final int CHUNK_SIZE = 0;       // bytes per socket read
+    public static final int QUEUE_DELAY = 1;      // ms a received chunk waits for the service thread
+    public static final int WRITE_LATENCY = 2;    // us from queueing data to the end of its socket write
+    public static final int HISTOGRAMS = 3;
+
+    public static final int BUCKETS = 32;
+
+    private final AtomicLongArray mCounters = new AtomicLongArray(COUNTERS);
+    private final AtomicLongArray mBuckets = new AtomicLongArray(HISTOGRAMS * BUCKETS);
+
+    // Recording -----------------------------------------------------------------------------------
+
+    void add(int counter, long delta) {
+        mCounters.addAndGet(counter, delta);
+    }
+
+    void record(int histogram, long value) {
+        mBuckets.incrementAndGet(histogram * BUCKETS + bucket(value));
+    }
+
+    long get(int counter) {
+        return mCounters.get(counter);
+    }
+
+    // Snapshot ------------------------------------------------------------------------------------
+
+    // Not atomic across counters, each one is read once
+    public long[] getCounters() {
+        long[] counters = new long[COUNTERS];
+
+        for (int i = 0; i < COUNTERS; i++) {
+            counters[i] = mCounters.get(i);
+        }
+
+        return counters;
+    }
+
+    // Bucket counts up to the highest bucket in use
+    public long[] getHistogram(int histogram) {
+        int base = histogram * BUCKETS;
+        int used = BUCKETS;
+
+        while (used > 0 && mBuckets.get(base + used - 1) == 0) used--;
+
+        long[] buckets = new long[used];
+
+        for (int i = 0; i < used; i++) {
+            buckets[i] = mBuckets.get(base + i);
+        }
+
+        return buckets;
+    }
+
+    // Helpers -------------------------------------------------------------------------------------
+
+    static int bucket(long value) {
+        if (value <= 0) return 0;
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    // Smallest value counted in a bucket
+    public static long bucketStart(int bucket) {
+        return (bucket == 0) ? 0 : 1L << (bucket - 1);
+    }
+}
@@ -0,0 +1,50 @@
+package in.konstant.BT;
+
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// Byte stream a BTDevice connection runs on. Normally an RFCOMM BluetoothSocket, but it can
+// be replaced by a Factory, e.g. BTSimulator's loopback devices for load tests.
+interface BTTransport {
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    void close() throws IOException;
+
+    // Opens a connected transport to the address. Called on the connect pool and may block.
+    interface Factory {
+        BTTransport open(String address) throws IOException;
+    }
+
+    final class Socket implements BTTransport {
+        private final BluetoothSocket mSocket;
+
+        Socket(BluetoothSocket socket) {
+            mSocket = socket;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+
+        @Override
+        public String toString() {
+            return mSocket.toString();
+        }
+    }
+}
@@ -24,12 +24,14 @@ import java.util.HashMap;
 import java.util.List;
 
 import in.konstant.BT.BTDeviceList;
+import in.konstant.BT.BTLog;
 import in.konstant.BT.BTService;
 
 public class BTTest extends Activity {
     // Debug
     private static final String TAG = "BTTest";
-    private static final boolean DBG = true;
+    private static final boolean DBG = BuildConfig.BT_LOG_DEBUG;
+    private static final int LOG = BTLog.CLIENT;
 
     private ExpandableListAdapter listAdapter;
     private ExpandableListView expandableListView;
@@ -40,7 +42,10 @@ public class BTTest extends Activity {
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
-        if (DBG) Log.d(TAG, "onCreate()");
+        // Before any BT class is loaded, they pick the flag up once
+        BTLog.setDebug(BuildConfig.BT_LOG_DEBUG);
+
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "onCreate()");
 
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_bttest);
@@ -52,7 +57,7 @@ public class BTTest extends Activity {
 
     @Override
     public void onStart() {
-        if (DBG) Log.d(TAG, "onStart()");
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "onStart()");
         super.onStart();
 
         sendCommand(BTService.Command.GET_STATE, null);
@@ -60,7 +65,7 @@ public class BTTest extends Activity {
 
     @Override
     public void onResume() {
-        if (DBG) Log.d(TAG, "onResume()");
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "onResume()");
         super.onResume();
 
         sendCommand(BTService.Command.GET_STATE, null);
@@ -68,13 +73,13 @@ public class BTTest extends Activity {
 
     @Override
     public void onStop() {
-        if (DBG) Log.d(TAG, "onStop()");
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "onStop()");
         super.onStop();
     }
 
     @Override
     public void onDestroy() {
-        if (DBG) Log.d(TAG, "onDestroy()");
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "onDestroy()");
 
         serviceStop();
 
@@ -118,7 +123,7 @@ public class BTTest extends Activity {
     }
 
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
-        if (DBG) Log.d(TAG, "onActivityResult(" + requestCode + ", " + resultCode + ")");
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "onActivityResult(" + requestCode + ", " + resultCode + ")");
 
         switch (requestCode) {
             case BTDeviceList.REQ_DEVICE_LIST:
@@ -126,6 +131,7 @@ public class BTTest extends Activity {
                     String address = data.getExtras().getString(BTDeviceList.EXTRA_DEVICE_ADDRESS);
                     Bundle b = new Bundle();
                     b.putString(BTService.EXTRA_ADDRESS, address);
+                    b.putString(BTService.EXTRA_CHARSET, "UTF-8");
                     sendCommand(BTService.Command.CONNECT, b);
                 }
                 break;
@@ -135,7 +141,7 @@ public class BTTest extends Activity {
     // List ----------------------------------------------------------------------------------------
 
     private void initListView() {
-        if (DBG) Log.d(TAG, "initListView()");
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "initListView()");
         expandableListView = (ExpandableListView) findViewById(R.id.listExp);
 
         listDataGroup = new ArrayList<String>();
@@ -153,7 +159,7 @@ public class BTTest extends Activity {
 
                 Bundle b = new Bundle();
                 b.putString(BTService.EXTRA_ADDRESS, address);
-                b.putString(BTService.EXTRA_DATA, "{a} ");
+                b.putString(BTService.EXTRA_TEXT, "{a} ");
 
                 sendCommand(BTService.Command.SEND, b);
 
@@ -163,7 +169,7 @@ public class BTTest extends Activity {
     }
 
     private void refreshListView(String[] headers) {
-        if (DBG) Log.d(TAG, "refreshListView()");
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "refreshListView()");
         listDataGroup.clear();
 
         List <String> child = new ArrayList<String>();
@@ -172,7 +178,7 @@ public class BTTest extends Activity {
         child.add("3");
 
         for (String header : headers) {
-            if (DBG) Log.d(TAG, "Connected Device " + header);
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "Connected Device " + header);
             listDataGroup.add(header);
             listDataChild.put(header, child);
         }
@@ -185,7 +191,7 @@ public class BTTest extends Activity {
     private final Messenger mIncomingMessenger = new Messenger(new ReplyHandler());
 
     private void serviceStart() {
-        if (DBG) Log.d(TAG, "serviceStart()");
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "serviceStart()");
 
         Intent bindIntent = new Intent(this, BTService.class);
         bindIntent.putExtra(BTService.EXTRA_MESSENGER, mIncomingMessenger);
@@ -195,7 +201,7 @@ public class BTTest extends Activity {
     }
 
     private void serviceStop() {
-        if (DBG) Log.d(TAG, "serviceStop()");
+        if (DBG && BTLog.debug(LOG)) Log.d(TAG, "serviceStop()");
         if (mServiceConnected) {
             unbindService(mServiceConnection);
             stopService(new Intent(this, BTService.class));
@@ -206,11 +212,11 @@ public class BTTest extends Activity {
     class ReplyHandler extends Handler {
         // Debug
         private static final String TAG = "BTReplyHandler";
-        private static final boolean DBG = true;
+        private static final boolean DBG = BuildConfig.BT_LOG_DEBUG;
 
         @Override
         public void handleMessage(Message msg) {
-            if (DBG) Log.d(TAG, "handleMessage(" + msg + ")");
+            if (DBG && BTLog.verbose(LOG)) Log.v(TAG, "handleMessage(" + msg + ")");
 
             Bundle data = msg.getData();
 
@@ -245,8 +251,8 @@ public class BTTest extends Activity {
                     break;
 
                 case BTService.Reply.RECEIVED:
-                    String received = data.getString(BTService.EXTRA_DATA);
-                    if (DBG) Log.d(TAG, "Received: " + received);
+                    String received = data.getString(BTService.EXTRA_TEXT);
+                    if (DBG && BTLog.verbose(LOG)) Log.v(TAG, "Received: " + received);
                     break;
 
                 default:
@@ -258,14 +264,14 @@ public class BTTest extends Activity {
     private ServiceConnection mServiceConnection = new ServiceConnection() {
         @Override
         public void onServiceConnected(ComponentName name, IBinder service) {
-            if (DBG) Log.d(TAG, "onServiceConnected()");
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "onServiceConnected()");
             mService = new Messenger(service);
             mServiceConnected = true;
         }
 
         @Override
         public void onServiceDisconnected(ComponentName name) {
-            if (DBG) Log.d(TAG, "onServiceDisconnected()");
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "onServiceDisconnected()");
             mService = null;
             mServiceConnected = false;
         }
@@ -280,7 +286,7 @@ public class BTTest extends Activity {
     }
 
     private void sendCommand(int cmd, Bundle data) {
-        if (DBG) Log.d(TAG, "sendCommand(" + cmd + ")");
+        if (DBG && BTLog.verbose(LOG)) Log.v(TAG, "sendCommand(" + cmd + ")");
 
         Message msg = Message.obtain(null, cmd);
 
@@ -292,10 +298,10 @@ public class BTTest extends Activity {
             try {
                 mService.send(msg);
             } catch (RemoteException e) {
-                if (DBG) Log.d(TAG, "sendCommand(): Service no longer exists");
+                if (DBG && BTLog.debug(LOG)) Log.d(TAG, "sendCommand(): Service no longer exists");
             }
         } else {
-            if (DBG) Log.d(TAG, "sendCommand(): Not connected to service");
+            if (DBG && BTLog.debug(LOG)) Log.d(TAG, "sendCommand(): Not connected to service");
         }
     }
 
@@ -0,0 +1,100 @@
+package in.konstant.BT;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// In-memory stand-ins for the streams of a BluetoothSocket
+final class BenchStreams {
+    private BenchStreams() {
+    }
+
+    // Endless repetition of a byte pattern, delivered in reads of at most 'chunk' bytes like
+    // an RFCOMM socket handing out whatever arrived in one packet. Always has data available.
+    static final class Loop extends InputStream {
+        private final byte[] mPattern;
+        private final int mChunk;
+        private int mPosition;
+
+        Loop(byte[] pattern, int chunk) {
+            mPattern = pattern;
+            mChunk = chunk;
+        }
+
+        @Override
+        public int available() {
+            return mChunk;
+        }
+
+        @Override
+        public int read() {
+            int b = mPattern[mPosition] & 0xFF;
+            mPosition = (mPosition + 1) % mPattern.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            int count = Math.min(length, mChunk);
+
+            for (int i = 0; i < count; ) {
+                int n = Math.min(count - i, mPattern.length - mPosition);
+                System.arraycopy(mPattern, mPosition, buffer, offset + i, n);
+                mPosition = (mPosition + n) % mPattern.length;
+                i += n;
+            }
+
+            return count;
+        }
+    }
+
+    // Counts and discards everything written
+    static final class Sink extends OutputStream {
+        long bytes;
+        long writes;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+            writes++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+            bytes += length;
+            writes++;
+        }
+    }
+
+    // Test data ----------------------------------------------------------------------------------
+
+    // 'count' printable messages of 'size' bytes, each ending in '\n'
+    static byte[] delimited(int count, int size) {
+        byte[] data = new byte[count * size];
+
+        for (int m = 0; m < count; m++) {
+            for (int i = 0; i < size - 1; i++) {
+                data[m * size + i] = (byte) ('a' + (m + i) % 26);
+            }
+
+            data[m * size + size - 1] = '\n';
+        }
+
+        return data;
+    }
+
+    // 'count' messages of 'size' payload bytes, each behind a one byte length header
+    static byte[] lengthPrefixed(int count, int size) {
+        byte[] data = new byte[count * (size + 1)];
+
+        for (int m = 0; m < count; m++) {
+            int base = m * (size + 1);
+            data[base] = (byte) size;
+
+            for (int i = 0; i < size; i++) {
+                data[base + 1 + i] = (byte) ('a' + (m + i) % 26);
+            }
+        }
+
+        return data;
+    }
+}
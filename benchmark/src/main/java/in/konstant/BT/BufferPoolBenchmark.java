@@ -0,0 +1,67 @@
+package in.konstant.BT;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Receive buffer handling: obtain/recycle on the read task, retain for frames dispatched
+// out of one buffer, and the pool shared by a read task and the service thread.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BufferPoolBenchmark {
+    private BTBufferPool mPool;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mPool = new BTBufferPool();
+    }
+
+    @Benchmark
+    public BTBuffer obtainRecycle() {
+        BTBuffer buffer = mPool.obtain();
+        buffer.recycle();
+        return buffer;
+    }
+
+    // Two frames out of one chunk: read task and two consumers each drop a reference
+    @Benchmark
+    public BTBuffer obtainRetainRecycle() {
+        BTBuffer buffer = mPool.obtain();
+        buffer.retain();
+        buffer.retain();
+        buffer.recycle();
+        buffer.recycle();
+        buffer.recycle();
+        return buffer;
+    }
+
+    // Read task and service thread contending for the pool lock
+    @Benchmark
+    @Threads(2)
+    public BTBuffer contended() {
+        BTBuffer buffer = mPool.obtain();
+        buffer.recycle();
+        return buffer;
+    }
+
+    // Baseline without a pool
+    @Benchmark
+    public byte[] allocate() {
+        return new byte[BTBufferPool.DEFAULT_BUFFER_SIZE];
+    }
+}
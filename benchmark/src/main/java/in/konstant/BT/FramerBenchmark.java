@@ -0,0 +1,73 @@
+package in.konstant.BT;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+// Framing of a received stream, in chunk sizes that split frames (100) and that don't (64,
+// 1024 for 32 byte messages). Scores are per message.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FramerBenchmark {
+    static final int MESSAGES = 128;
+    static final int MESSAGE_SIZE = 32;
+
+    @Param({"delimiter", "length", "fixed"})
+    public String framing;
+
+    @Param({"64", "100", "1024"})
+    public int chunk;
+
+    private BTFramer mFramer;
+    private byte[] mStream;
+
+    private Blackhole mBlackhole;
+
+    private final BTFramer.Listener mListener = new BTFramer.Listener() {
+        @Override
+        public void onFrame(byte[] data, int offset, int length) {
+            mBlackhole.consume(data[offset]);
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setup(Blackhole blackhole) {
+        mBlackhole = blackhole;
+
+        if (framing.equals("delimiter")) {
+            mFramer = BTFramer.delimiter(new byte[] { '\n' }, true, BTFramer.DEFAULT_MAX_FRAME);
+            mStream = BenchStreams.delimited(MESSAGES, MESSAGE_SIZE);
+        } else if (framing.equals("length")) {
+            mFramer = BTFramer.lengthPrefixed(1, true, BTFramer.DEFAULT_MAX_FRAME);
+            mStream = BenchStreams.lengthPrefixed(MESSAGES, MESSAGE_SIZE - 1);
+        } else {
+            mFramer = BTFramer.fixed(MESSAGE_SIZE);
+            mStream = BenchStreams.delimited(MESSAGES, MESSAGE_SIZE);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void feed() {
+        for (int offset = 0; offset < mStream.length; offset += chunk) {
+            mFramer.feed(mStream, offset, Math.min(chunk, mStream.length - offset), mListener);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package in.konstant.BT;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+// Receive path of a framed connection, single threaded: socket read into pooled buffers
+// (BTDevice.Connection.read), framing and dispatch (notifyService), then what the service
+// thread does with every message for the chosen encoding (BTService.dispatchReceived).
+// The hand-off goes through the device's BTReceiveQueue, only the Handler notification is
+// left out. Scores are per message.
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReceivePipelineBenchmark {
+    static final int MESSAGES = 128;
+    static final int MESSAGE_SIZE = 32;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Param({"64", "100", "1024"})
+    public int chunk;
+
+    // EXTRA_DATA copy, EXTRA_TEXT decoding or streaming into the shared ring
+    @Param({"data", "text", "ring"})
+    public String encoding;
+
+    private InputStream mInStream;
+    private BTBufferPool mBufferPool;
+    private BTFramer mFramer;
+    private BTStats mStats;
+    private BTSharedRing mRing;
+    private File mRingFile;
+
+    // Dispatched messages waiting for the service thread
+    private BTReceiveQueue mReceiveQueue;
+    private final BTReceiveQueue.Chunk mChunk = new BTReceiveQueue.Chunk();
+
+    // Buffer currently being fed to the framer
+    private BTBuffer mFrameBuffer;
+
+    private final BTFramer.Listener mFrameListener = new BTFramer.Listener() {
+        @Override
+        public void onFrame(byte[] data, int offset, int length) {
+            BTBuffer frame = mFrameBuffer;
+
+            if (data == frame.data) {
+                frame.retain();
+            } else {
+                frame = mBufferPool.obtain(length);
+                System.arraycopy(data, offset, frame.data, 0, length);
+                frame.length = length;
+                offset = 0;
+            }
+
+            mStats.add(BTStats.FRAMES_IN, 1);
+            mReceiveQueue.offer(frame, offset, length, 0);
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        mInStream = new BenchStreams.Loop(BenchStreams.delimited(MESSAGES, MESSAGE_SIZE), chunk);
+        mBufferPool = new BTBufferPool();
+        mFramer = BTFramer.delimiter(new byte[] { '\n' }, true, BTFramer.DEFAULT_MAX_FRAME);
+        mStats = new BTStats();
+        mReceiveQueue = new BTReceiveQueue(BTReceiveQueue.DEFAULT_CAPACITY, BTReceiveQueue.BLOCK, mStats);
+
+        mRingFile = File.createTempFile("bench", ".ring");
+        mRing = BTSharedRing.create(mRingFile, BTSharedRing.DEFAULT_CAPACITY);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mRingFile.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void receive(Blackhole blackhole) throws IOException {
+        int remaining = MESSAGES * MESSAGE_SIZE;
+
+        // Read task
+        while (remaining > 0) {
+            BTBuffer buffer = mBufferPool.obtain();
+            int bytes = mInStream.read(buffer.data, 0, Math.min(buffer.data.length, remaining));
+
+            buffer.length = bytes;
+            remaining -= bytes;
+
+            mStats.add(BTStats.BYTES_IN, bytes);
+            mStats.add(BTStats.CHUNKS_IN, 1);
+            mStats.record(BTStats.CHUNK_SIZE, bytes);
+
+            mFrameBuffer = buffer;
+            mFramer.feed(buffer.data, 0, bytes, mFrameListener);
+            mFrameBuffer = null;
+
+            buffer.recycle();
+        }
+
+        // Service thread
+        while (mReceiveQueue.poll(mChunk)) {
+            BTBuffer received = mChunk.buffer;
+            int offset = mChunk.offset;
+            int length = mChunk.length;
+
+            mStats.record(BTStats.QUEUE_DELAY, 0);
+
+            if (encoding.equals("data")) {
+                blackhole.consume(Arrays.copyOfRange(received.data, offset, offset + length));
+            } else if (encoding.equals("text")) {
+                blackhole.consume(new String(received.data, offset, length, UTF8));
+            } else {
+                blackhole.consume(mRing.write(received.data, offset, length));
+            }
+
+            received.recycle();
+            mChunk.buffer = null;
+        }
+    }
+}
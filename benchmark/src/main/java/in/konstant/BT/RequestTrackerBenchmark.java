@@ -0,0 +1,70 @@
+package in.konstant.BT;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Request/response correlation with a full window: submit, send, match one response and
+// look for the next deadline, as the service thread does per REQUEST.
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestTrackerBenchmark {
+    @Param({"1", "16", "256"})
+    public int window;
+
+    // FIFO or correlation ID at offset 0
+    @Param({"-1", "0"})
+    public int idOffset;
+
+    private BTRequestTracker mTracker;
+    private byte[] mPayload;
+    private byte[] mResponse;
+    private long mNow;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        mTracker = new BTRequestTracker("00:11:22:33:44:55", window, idOffset);
+        mPayload = new byte[16];
+        mResponse = new byte[16];
+
+        // Fill the window so every match has to search it
+        for (int i = 0; i < window - 1; i++) {
+            mTracker.submit(mPayload.clone(), 0, 1000);
+            mTracker.nextToSend(mNow);
+        }
+    }
+
+    @Benchmark
+    public long request() {
+        BTRequestTracker.Request request = mTracker.submit(mPayload, 0, 1000);
+        mTracker.nextToSend(++mNow);
+
+        // Answer the newest request, the worst case for the ID search
+        mResponse[0] = (byte) request.id;
+        BTRequestTracker.Request matched = mTracker.match(mResponse, 0, mResponse.length);
+
+        // FIFO answers the oldest instead, keep the window full
+        if (matched != request) {
+            mTracker.cancel(request);
+            mTracker.submit(mPayload, 0, 1000);
+            mTracker.nextToSend(mNow);
+        }
+
+        return mTracker.nextDeadline();
+    }
+}
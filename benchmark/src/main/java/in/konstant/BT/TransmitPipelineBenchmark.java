@@ -0,0 +1,103 @@
+package in.konstant.BT;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Transmit path, single threaded: payload encoding of a SEND command (BTService.getPayload),
+// queueing (BTDevice.Connection.write) and the coalescing flush into the socket stream
+// (Connection.flush), with 'coalesce' messages merged per flush. Scores are per message.
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TransmitPipelineBenchmark {
+    static final int MESSAGES = 128;
+    static final int MAX_WRITE_BATCH = 4096;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Param({"1", "16", "128"})
+    public int coalesce;
+
+    // EXTRA_DATA passed through or EXTRA_TEXT encoded
+    @Param({"data", "text"})
+    public String encoding;
+
+    private byte[] mData;
+    private String mText;
+
+    private BlockingQueue<byte[]> mWriteQueue;
+    private ByteArrayOutputStream mBatch;
+    private BenchStreams.Sink mOutStream;
+    private BTStats mStats;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mData = BenchStreams.delimited(1, 32);
+        mText = new String(mData, UTF8);
+
+        mWriteQueue = new ArrayBlockingQueue<byte[]>(2 * MESSAGES);
+        mBatch = new ByteArrayOutputStream(MAX_WRITE_BATCH);
+        mOutStream = new BenchStreams.Sink();
+        mStats = new BTStats();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public long transmit() throws IOException {
+        for (int i = 0; i < MESSAGES; i++) {
+            byte[] payload = encoding.equals("data") ? mData : mText.getBytes(UTF8);
+
+            if (!mWriteQueue.offer(payload)) {
+                mStats.add(BTStats.WRITE_DROPS, 1);
+            }
+
+            if ((i + 1) % coalesce == 0) {
+                flush();
+            }
+        }
+
+        flush();
+
+        return mOutStream.bytes;
+    }
+
+    private void flush() throws IOException {
+        long queued = System.nanoTime();
+        byte[] data;
+
+        mBatch.reset();
+
+        while (mBatch.size() < MAX_WRITE_BATCH && (data = mWriteQueue.poll()) != null) {
+            mBatch.write(data, 0, data.length);
+        }
+
+        if (mBatch.size() > 0) {
+            mBatch.writeTo(mOutStream);
+
+            mStats.add(BTStats.BYTES_OUT, mBatch.size());
+            mStats.add(BTStats.WRITES_OUT, 1);
+            mStats.record(BTStats.WRITE_LATENCY, (System.nanoTime() - queued) / 1000);
+        }
+    }
+}